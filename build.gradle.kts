@@ -51,6 +51,18 @@ dependencies {
     // https://mvnrepository.com/artifact/com.deepl.api/deepl-java
     implementation("com.deepl.api:deepl-java:1.4.0")
     implementation("com.github.MeItsLars:MCPE-NBT:1.6")
+
+    // https://mvnrepository.com/artifact/org.junit.jupiter/junit-jupiter
+    testImplementation(platform("org.junit:junit-bom:5.10.1"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
+java {
+    toolchain {
+        // virtual threads are final from Java 21
+        languageVersion.set(JavaLanguageVersion.of(21))
+    }
 }
 
 application {
@@ -61,3 +73,7 @@ tasks.withType(JavaCompile::class.java).configureEach {
     options.encoding = "UTF-8"
     options.compilerArgs.add("-Xlint:all")
 }
+
+tasks.test {
+    useJUnitPlatform()
+}
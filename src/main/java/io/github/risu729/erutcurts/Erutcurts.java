@@ -42,6 +42,15 @@ public class Erutcurts {
 
   public final Path TEMP_DIR = Path.of(System.getProperty("java.io.tmpdir")).resolve(BotInfo.NAME);
 
+  // unlike TEMP_DIR, this is kept across restarts if CACHE_DIR is set to a persistent volume
+  public final Path CACHE_DIR =
+      Path.of(
+          Envs.getEnv(
+              "CACHE_DIR",
+              Path.of(System.getProperty("java.io.tmpdir"))
+                  .resolve(BotInfo.NAME + "-cache")
+                  .toString()));
+
   public final Path RESOURCES_DIR = Path.of("src", "main", "resources");
 
   @Getter private final JDA JDA;
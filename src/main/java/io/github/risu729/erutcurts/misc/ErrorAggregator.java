@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.misc;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.experimental.UtilityClass;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+// groups errors by the fingerprint of the type and the top frames of the root cause
+// the first error of a group is posted, and later ones update the count in the same message
+// if the first post fails, it is retried on the next update with the current count
+// counts are kept in a sliding window of one-minute buckets, and groups with no errors in the
+// window are forgotten, so that the next error is posted again
+@UtilityClass
+class ErrorAggregator {
+
+  private final int FINGERPRINT_FRAMES = 5;
+  private final int WINDOW_MINUTES = 60;
+  private final Duration UPDATE_INTERVAL = Duration.ofSeconds(30);
+
+  private final Map<String, ErrorGroup> GROUPS = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService EXECUTOR =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("error-aggregator-%d").setDaemon(true).build());
+
+  static {
+    EXECUTOR.scheduleWithFixedDelay(
+        ErrorAggregator::update,
+        UPDATE_INTERVAL.toMillis(),
+        UPDATE_INTERVAL.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  void report(@NotNull Throwable throwable, @NotNull MessageEmbed embed) {
+    var fingerprint = fingerprint(throwable);
+    var minute = currentMinute();
+    var created = new boolean[1];
+    var group =
+        GROUPS.computeIfAbsent(
+            fingerprint,
+            key -> {
+              created[0] = true;
+              return new ErrorGroup(embed);
+            });
+    // the first error is posted as is, so it does not need an update
+    group.record(minute, !created[0]);
+    if (created[0]) {
+      post(fingerprint, group, minute);
+    }
+  }
+
+  private void post(@NotNull String fingerprint, @NotNull ErrorGroup group, long minute) {
+    if (!group.startPosting()) {
+      return;
+    }
+    try {
+      Notifications.getNotificationChannel()
+          .sendMessageEmbeds(group.createEmbed(fingerprint, minute))
+          .queue(message -> group.setMessageId(message.getIdLong()), e -> group.failPosting());
+    } catch (RuntimeException e) {
+      group.failPosting();
+      throw e;
+    }
+  }
+
+  // line numbers are excluded so that the fingerprint survives unrelated changes
+  @Contract(pure = true)
+  private @NotNull String fingerprint(@NotNull Throwable throwable) {
+    var root = Throwables.getRootCause(throwable);
+    var key =
+        Stream.concat(
+                Stream.of(root.getClass().getName()),
+                Stream.of(root.getStackTrace())
+                    .limit(FINGERPRINT_FRAMES)
+                    .map(frame -> frame.getClassName() + "#" + frame.getMethodName()))
+            .collect(Collectors.joining("\n"));
+    return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString().substring(0, 12);
+  }
+
+  private void update() {
+    var minute = currentMinute();
+    GROUPS.forEach(
+        (fingerprint, group) -> {
+          if (group.countInWindow(minute) == 0) {
+            GROUPS.remove(fingerprint, group);
+            return;
+          }
+          if (group.needsPost()) {
+            post(fingerprint, group, minute);
+            return;
+          }
+          var messageId = group.pollUpdate();
+          if (messageId != 0) {
+            Notifications.getNotificationChannel()
+                .editMessageEmbedsById(messageId, group.createEmbed(fingerprint, minute))
+                .queue(null, e -> group.markDirty());
+          }
+        });
+  }
+
+  private long currentMinute() {
+    return TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+  }
+
+  private static final class ErrorGroup {
+
+    private final MessageEmbed embed;
+    private final long[] bucketMinutes = new long[WINDOW_MINUTES];
+    private final int[] bucketCounts = new int[WINDOW_MINUTES];
+    private long total;
+    // 0 until the message is sent
+    private long messageId;
+    // true while the first message is being sent, so that it is not sent twice
+    private boolean posting;
+    private boolean dirty;
+
+    private ErrorGroup(@NotNull MessageEmbed embed) {
+      this.embed = embed;
+    }
+
+    private synchronized void record(long minute, boolean needsUpdate) {
+      var index = (int) (minute % WINDOW_MINUTES);
+      if (bucketMinutes[index] != minute) {
+        bucketMinutes[index] = minute;
+        bucketCounts[index] = 0;
+      }
+      bucketCounts[index]++;
+      total++;
+      dirty |= needsUpdate;
+    }
+
+    private synchronized int countInWindow(long minute) {
+      var count = 0;
+      for (int i = 0; i < WINDOW_MINUTES; i++) {
+        if (minute - bucketMinutes[i] < WINDOW_MINUTES) {
+          count += bucketCounts[i];
+        }
+      }
+      return count;
+    }
+
+    private synchronized boolean needsPost() {
+      return messageId == 0 && !posting;
+    }
+
+    private synchronized boolean startPosting() {
+      if (!needsPost()) {
+        return false;
+      }
+      posting = true;
+      return true;
+    }
+
+    // the posted message has the count at the time of sending, so later errors are updated
+    private synchronized void setMessageId(long messageId) {
+      this.messageId = messageId;
+      posting = false;
+    }
+
+    private synchronized void failPosting() {
+      posting = false;
+    }
+
+    private synchronized void markDirty() {
+      dirty = true;
+    }
+
+    // the ID of the message to be updated, or 0 if not needed
+    private synchronized long pollUpdate() {
+      if (!dirty || messageId == 0) {
+        return 0;
+      }
+      dirty = false;
+      return messageId;
+    }
+
+    @NotNull
+    private synchronized MessageEmbed createEmbed(@NotNull String fingerprint, long minute) {
+      return new EmbedBuilder(embed)
+          .addField(
+              "Occurrences",
+              "%d in the last %d minutes (%d in total)"
+                  .formatted(countInWindow(minute), WINDOW_MINUTES, total),
+              false)
+          .addField("Fingerprint", fingerprint, false)
+          .build();
+    }
+  }
+}
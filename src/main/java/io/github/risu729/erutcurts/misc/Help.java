@@ -91,11 +91,14 @@ final class Help extends ExecutableSlashCommandData {
 
                         **機能一覧**
                         ・ ストラクチャーファイル(.mcstructure)をビヘイビアパック・ワールドへ自動で変換します。
+                        ・ /convert と /package では、ストラクチャーファイルをまとめた.zipファイルも変換できます。フォルダーは名前空間として扱われます。
+                        ・ /convert と /package では、Java Edition のストラクチャーファイル(.nbt)と Sponge Schematic(.schem)も変換できます。対応しているのは主な建築ブロック（階段・ハーフブロック・ドアなどの向きを含む）のみで、未対応のブロックを含む場合はエラーになります。ブロックエンティティとエンティティは含まれません。
 
                         **コマンド一覧**
                         ・ /help このヘルプを表示します。
                         ・ /convert ストラクチャーファイルを変換します。
-                        ・ /package 自動変換を一時停止し、/package convert で送信したファイルをまとめて変換します。
+                        ・ /extract ワールドに保存されたストラクチャーを取り出します。
+                        ・ /package 自動変換を一時停止し、/package convert で送信したファイルをまとめて変換します。ビヘイビアパック(.mcpack, .mcaddon)も送信すると、ストラクチャーを1つのパックに統合します。
                         ・ /settings 設定を確認・変更します。
 
                         **iOSへの対応について**
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.misc;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.github.risu729.erutcurts.util.EmbedUtil;
+import java.awt.Color;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import lombok.experimental.UtilityClass;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import org.jetbrains.annotations.NotNull;
+
+// coalesces log embeds into digest messages, so that logs do not use up the rate limit
+// the queue is bounded and the oldest entries are dropped when it is full
+// messages are sent one by one on a single thread, and only a few per flush, so that replies to
+// users are not queued behind logs in the requester of JDA
+@UtilityClass
+class LogDigest {
+
+  private final int MAX_QUEUE_SIZE = 500;
+  private final Duration FLUSH_INTERVAL = Duration.ofSeconds(15);
+  private final int MAX_MESSAGES_PER_FLUSH = 3;
+  private final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
+
+  private final Deque<MessageEmbed> QUEUE = new ArrayDeque<>();
+  private int dropped;
+  private boolean flushScheduled;
+
+  private final ScheduledExecutorService EXECUTOR =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("log-digest-%d").setDaemon(true).build());
+
+  static {
+    EXECUTOR.scheduleWithFixedDelay(
+        LogDigest::flush,
+        FLUSH_INTERVAL.toMillis(),
+        FLUSH_INTERVAL.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  // flushed immediately once a message can be filled up
+  void add(@NotNull MessageEmbed embed) {
+    synchronized (QUEUE) {
+      if (QUEUE.size() == MAX_QUEUE_SIZE) {
+        QUEUE.removeFirst();
+        dropped++;
+      }
+      QUEUE.addLast(embed);
+      if (QUEUE.size() >= Message.MAX_EMBED_COUNT && !flushScheduled) {
+        flushScheduled = true;
+        EXECUTOR.execute(LogDigest::flush);
+      }
+    }
+  }
+
+  // sends all the remaining entries before JDA is shut down, on the thread of the digest so that
+  // the order is kept
+  void flushAll() {
+    try {
+      EXECUTOR
+          .submit(() -> flush(Integer.MAX_VALUE))
+          .get(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException ignored) {
+      // logs are best effort
+    }
+  }
+
+  private void flush() {
+    flush(MAX_MESSAGES_PER_FLUSH);
+  }
+
+  // a failed batch is put back at the head, so that it is sent first on the next flush
+  private void flush(int maxMessages) {
+    try {
+      for (int i = 0; i < maxMessages; i++) {
+        var batch = poll();
+        if (batch.isEmpty()) {
+          return;
+        }
+        try {
+          Notifications.getNotificationChannel().sendMessageEmbeds(batch.toEmbeds()).complete();
+        } catch (RuntimeException e) {
+          requeue(batch);
+          return;
+        }
+      }
+    } finally {
+      synchronized (QUEUE) {
+        flushScheduled = false;
+      }
+    }
+  }
+
+  // embeds of a message are limited in both the count and the total length
+  // the notice of dropped entries is counted as an embed of the batch
+  @NotNull
+  private Batch poll() {
+    List<MessageEmbed> entries = new ArrayList<>();
+    int droppedEntries;
+    synchronized (QUEUE) {
+      droppedEntries = dropped;
+      dropped = 0;
+      var count = droppedEntries > 0 ? 1 : 0;
+      var length = droppedEntries > 0 ? createDroppedNotice(droppedEntries).getLength() : 0;
+      while (!QUEUE.isEmpty() && count < Message.MAX_EMBED_COUNT) {
+        var embed = QUEUE.peekFirst();
+        if (length + embed.getLength() > MessageEmbed.EMBED_MAX_LENGTH_BOT) {
+          break;
+        }
+        entries.add(QUEUE.removeFirst());
+        count++;
+        length += embed.getLength();
+      }
+    }
+    return new Batch(droppedEntries, entries);
+  }
+
+  // the queue stays bounded, so the oldest entries are dropped if new ones have filled it
+  private void requeue(@NotNull Batch batch) {
+    synchronized (QUEUE) {
+      dropped += batch.dropped();
+      for (var embed : batch.entries().reversed()) {
+        QUEUE.addFirst(embed);
+      }
+      while (QUEUE.size() > MAX_QUEUE_SIZE) {
+        QUEUE.removeFirst();
+        dropped++;
+      }
+    }
+  }
+
+  @NotNull
+  private MessageEmbed createDroppedNotice(int count) {
+    return EmbedUtil.createDefaultBuilder("Log")
+        .setColor(Color.ORANGE)
+        .setDescription("%d log entries were dropped.".formatted(count))
+        .build();
+  }
+
+  private record Batch(int dropped, @NotNull List<@NotNull MessageEmbed> entries) {
+
+    private boolean isEmpty() {
+      return dropped == 0 && entries.isEmpty();
+    }
+
+    @NotNull
+    private List<@NotNull MessageEmbed> toEmbeds() {
+      List<MessageEmbed> embeds = new ArrayList<>();
+      if (dropped > 0) {
+        embeds.add(createDroppedNotice(dropped));
+      }
+      embeds.addAll(entries);
+      return embeds;
+    }
+  }
+}
@@ -69,5 +69,7 @@ public final class MiscListener extends ListenerWithRegistry {
   @Override
   public void shutdown() {
     Notifications.sendNotification("%s is now shutting down...".formatted(BotInfo.NAME));
+    // called before JDA is shut down, so that the remaining logs are not lost
+    LogDigest.flushAll();
   }
 }
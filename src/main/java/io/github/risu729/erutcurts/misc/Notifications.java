@@ -9,6 +9,7 @@
 package io.github.risu729.erutcurts.misc;
 
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.github.risu729.erutcurts.Erutcurts;
 import io.github.risu729.erutcurts.util.Attachments;
 import io.github.risu729.erutcurts.util.EmbedUtil;
@@ -18,11 +19,15 @@ import io.github.risu729.erutcurts.util.file.FileUtil;
 import java.awt.Color;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import lombok.experimental.UtilityClass;
+import net.dv8tion.jda.api.EmbedBuilder;
 import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.entities.User;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
 import net.dv8tion.jda.api.interactions.callbacks.IReplyCallback;
 import net.dv8tion.jda.api.utils.FileUpload;
 import org.jetbrains.annotations.Contract;
@@ -32,6 +37,14 @@ import org.jetbrains.annotations.Nullable;
 @UtilityClass
 public class Notifications {
 
+  private final boolean LOG_ATTACHMENTS =
+      Boolean.parseBoolean(Envs.getEnv("LOG_ATTACHMENTS", "false"));
+
+  // attachments are downloaded and uploaded here, off the thread handling the event
+  private final Executor LOG_EXECUTOR =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder().setNameFormat("log-%d").setDaemon(true).build());
+
   @SuppressWarnings("WeakerAccess")
   public void sendNotification(@NotNull String message) {
     sendToNotificationChannel(
@@ -42,25 +55,56 @@ public class Notifications {
     sendToNotificationChannel(dataRequest.createEmbed());
   }
 
+  // logs are sent in digests, see LogDigest
   public void sendLog(@NotNull String message, @Nullable Guild guild, @NotNull User user) {
-    sendLog(message, guild, user, List.of());
+    LogDigest.add(createLogBuilder(message, guild, user).build());
   }
 
+  // the files are referenced by the links to the source message and the attachments
+  // they are re-attached only if LOG_ATTACHMENTS is enabled, in the background
   public void sendLog(
       @NotNull String message,
-      @Nullable Guild guild,
-      @NotNull User user,
+      @NotNull Message source,
       @NotNull Collection<? extends Message.@NotNull Attachment> attachments) {
-    sendToNotificationChannel(
-        EmbedUtil.createDefaultBuilder("Log")
-            .setColor(Color.GREEN)
-            .setDescription(message)
-            .addField("Guild", guild == null ? "DM" : guild.getName(), false)
-            .addField("User", user.getName(), false)
-            .build(),
-        attachments);
+    var embed =
+        createLogBuilder(
+                message, source.isFromGuild() ? source.getGuild() : null, source.getAuthor())
+            .addField("Message", source.getJumpUrl(), false)
+            .addField("Files", createFileLinks(attachments), false)
+            .build();
+    if (LOG_ATTACHMENTS && !attachments.isEmpty()) {
+      LOG_EXECUTOR.execute(() -> sendToNotificationChannel(embed, attachments));
+    } else {
+      LogDigest.add(embed);
+    }
+  }
+
+  @Contract(pure = true)
+  private @NotNull EmbedBuilder createLogBuilder(
+      @NotNull String message, @Nullable Guild guild, @NotNull User user) {
+    return EmbedUtil.createDefaultBuilder("Log")
+        .setColor(Color.GREEN)
+        .setDescription(message)
+        .addField("Guild", guild == null ? "DM" : guild.getName(), false)
+        .addField("User", user.getName(), false);
   }
 
+  // links which do not fit in a field are omitted
+  @Contract(pure = true)
+  private @NotNull String createFileLinks(
+      @NotNull Collection<? extends Message.@NotNull Attachment> attachments) {
+    var links = new StringBuilder();
+    for (var attachment : attachments) {
+      var link = "[%s](%s)\n".formatted(attachment.getFileName(), attachment.getUrl());
+      if (links.length() + link.length() > MessageEmbed.VALUE_MAX_LENGTH) {
+        break;
+      }
+      links.append(link);
+    }
+    return links.toString();
+  }
+
+  // the reply is immediate, while the notification is aggregated with the same errors
   public void replyStackTrace(@NotNull IReplyCallback callback, @NotNull Throwable throwable) {
     var embed = createStackTraceEmbed(throwable);
     if (callback.isAcknowledged()) {
@@ -68,13 +112,13 @@ public class Notifications {
     } else {
       callback.replyEmbeds(embed).setEphemeral(true).queue();
     }
-    sendToNotificationChannel(embed);
+    ErrorAggregator.report(throwable, embed);
   }
 
   public void replyStackTrace(@NotNull Message message, @NotNull Throwable throwable) {
     var embed = createStackTraceEmbed(throwable);
     message.replyEmbeds(embed).queue();
-    sendToNotificationChannel(embed);
+    ErrorAggregator.report(throwable, embed);
   }
 
   @Contract("_ -> new")
@@ -93,12 +137,16 @@ public class Notifications {
     sendToNotificationChannel(embed, List.of());
   }
 
+  @Contract(pure = true)
+  @NotNull
+  MessageChannel getNotificationChannel() {
+    return Erutcurts.getMessageChannelById(Envs.getEnv("NOTIFICATION_CHANNEL_ID"));
+  }
+
   private void sendToNotificationChannel(
       @NotNull MessageEmbed embed,
       @NotNull Collection<? extends Message.@NotNull Attachment> attachments) {
-    var action =
-        Erutcurts.getMessageChannelById(Envs.getEnv("NOTIFICATION_CHANNEL_ID"))
-            .sendMessageEmbeds(embed);
+    var action = getNotificationChannel().sendMessageEmbeds(embed);
     try (var closeableTempDir = CloseablePath.of(FileUtil.createTempDir())) {
       action
           .addFiles(
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import io.github.risu729.erutcurts.BotInfo;
+import io.github.risu729.erutcurts.Erutcurts;
+import io.github.risu729.erutcurts.structure.behavior.Behavior;
+import io.github.risu729.erutcurts.structure.behavior.Identifier;
+import io.github.risu729.erutcurts.structure.behavior.LevelVersions;
+import io.github.risu729.erutcurts.structure.behavior.PackOptions;
+import io.github.risu729.erutcurts.util.file.CloseablePath;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Unmodifiable;
+
+// content-addressed cache of generated files, kept on disk across restarts
+// each entry is a directory named by the key and a random suffix, which contains only the
+// generated files, so that the deletion of an evicted entry never affects a regenerated one
+@Slf4j
+@UtilityClass
+class ArtifactCache {
+
+  private final Path CACHE_DIR = Erutcurts.CACHE_DIR.resolve("artifacts");
+  private final long MAX_CACHE_SIZE = 1024L * 1024 * 1024; // 1 GiB
+  // keys are hex strings, so they never contain the delimiter
+  private final String ENTRY_SUFFIX_DELIMITER = "_";
+
+  // futures are put in the map, so that generation runs outside the lock of the map and only
+  // callers of the same key wait for it
+  private final AsyncCache<String, List<Path>> CACHE =
+      Caffeine.newBuilder()
+          .maximumWeight(MAX_CACHE_SIZE)
+          .<String, List<Path>>weigher(
+              (key, paths) ->
+                  (int)
+                      Math.min(
+                          paths.stream().mapToLong(ArtifactCache::size).sum(), Integer.MAX_VALUE))
+          .removalListener(
+              (key, paths, removalCause) -> {
+                // entries replaced on restore have their own directories too
+                if (paths != null) {
+                  FileUtil.deleteQuietly(paths.get(0).getParent());
+                }
+              })
+          .buildAsync();
+
+  // an unreadable cache dir is logged and the cache starts empty, as it is only an optimization
+  static {
+    try {
+      Files.createDirectories(CACHE_DIR);
+      List<Path> entries;
+      try (var stream = Files.list(CACHE_DIR)) {
+        entries = stream.toList();
+      }
+      // restore entries in the order of use, so that old ones are evicted first
+      entries.stream()
+          .sorted(Comparator.comparing(ArtifactCache::lastModifiedTime))
+          .forEachOrdered(
+              entry ->
+                  findArtifacts(entry)
+                      .ifPresentOrElse(
+                          artifacts ->
+                              CACHE.put(
+                                  toKey(entry), CompletableFuture.completedFuture(artifacts)),
+                          () -> FileUtil.deleteQuietly(entry)));
+    } catch (IOException | UncheckedIOException e) {
+      log.warn("Failed to restore the artifact cache", e);
+    }
+  }
+
+  // structures are keyed by their contents, so re-uploaded files hit the same entry
+  @CheckReturnValue
+  @NotNull
+  String key(
+      @NotNull TargetType type,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options) {
+    return key(type, structures, options, null);
+  }
+
+  // base is the previous output which the new one is patched from
+  @CheckReturnValue
+  @NotNull
+  String key(
+      @NotNull TargetType type,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options,
+      @Nullable Path base) {
+    var hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putString(BotInfo.VERSION, StandardCharsets.UTF_8)
+            .putString(type.name(), StandardCharsets.UTF_8)
+            .putString(options.toString(), StandardCharsets.UTF_8)
+            .putBytes(Behavior.hashStructures(structures).asBytes());
+    // level.dat changes when LevelVersions is updated at runtime
+    switch (type) {
+      case WORLD, PREPLACED_WORLD, TEMPLATE -> hasher.putBytes(LevelVersions.hash().asBytes());
+      default -> {}
+    }
+    if (base != null) {
+      try {
+        hasher.putBytes(MoreFiles.asByteSource(base).hash(Hashing.sha256()).asBytes());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  // the file is linked into the dir, see getAll
+  @CheckReturnValue
+  @NotNull
+  Path get(@NotNull String key, @NotNull Path dir, @NotNull Generator generator) {
+    return getAll(key, dir, () -> List.of(generator.generate())).get(0);
+  }
+
+  // for generators which make several files in one pass, the files are sorted by name
+  // files are linked into a new directory in the dir, so that they are kept even if the entry is
+  // evicted before the caller sends them, and must not be modified as the contents are shared
+  @CheckReturnValue
+  @NotNull
+  @Unmodifiable
+  List<@NotNull Path> getAll(
+      @NotNull String key, @NotNull Path dir, @NotNull MultiGenerator generator) {
+    while (true) {
+      var generation = new CompletableFuture<List<Path>>();
+      var future = CACHE.asMap().putIfAbsent(key, generation);
+      if (future == null) {
+        return generateAndLink(key, dir, generator, generation);
+      }
+      List<Path> artifacts;
+      try {
+        artifacts = future.join();
+      } catch (CompletionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        throw e;
+      }
+      touch(artifacts);
+      try {
+        return link(artifacts, dir);
+      } catch (NoSuchFileException e) {
+        // evicted after the lookup, so generated again
+        CACHE.asMap().remove(key, future);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  // the files are linked before the future is completed, as the entry cannot be evicted until then
+  // failed futures are removed by the cache, so that the next caller generates again
+  @CheckReturnValue
+  private @NotNull @Unmodifiable List<@NotNull Path> generateAndLink(
+      @NotNull String key,
+      @NotNull Path dir,
+      @NotNull MultiGenerator generator,
+      @NotNull CompletableFuture<List<Path>> generation) {
+    try {
+      var artifacts = generate(key, generator);
+      List<Path> linked;
+      try {
+        linked = link(artifacts, dir);
+      } catch (IOException e) {
+        FileUtil.deleteQuietly(artifacts.get(0).getParent());
+        throw new UncheckedIOException(e);
+      }
+      generation.complete(artifacts);
+      touch(artifacts);
+      return linked;
+    } catch (RuntimeException | Error e) {
+      generation.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  // used as the access order when restoring the cache
+  private void touch(@NotNull List<@NotNull Path> artifacts) {
+    try {
+      Files.setLastModifiedTime(
+          artifacts.get(0).getParent(), FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException ignored) {
+    }
+  }
+
+  @CheckReturnValue
+  private @NotNull @Unmodifiable List<@NotNull Path> generate(
+      @NotNull String key, @NotNull MultiGenerator generator) {
+    var generated = List.<CloseablePath>of();
+    try {
+      generated = generator.generate();
+      var entryDir = Files.createTempDirectory(CACHE_DIR, key + ENTRY_SUFFIX_DELIMITER);
+      List<Path> moved = new ArrayList<>();
+      for (var file : generated) {
+        moved.add(Files.move(file.path(), entryDir.resolve(file.path().getFileName())));
+      }
+      return moved.stream().sorted().toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      generated.forEach(CloseablePath::close);
+    }
+  }
+
+  // files are copied if links are not supported, such as across file systems
+  // NoSuchFileException is thrown by the copy if the file has been deleted
+  @CheckReturnValue
+  private @NotNull @Unmodifiable List<@NotNull Path> link(
+      @NotNull List<@NotNull Path> artifacts, @NotNull Path dir) throws IOException {
+    var linkDir = Files.createTempDirectory(dir, null);
+    List<Path> linked = new ArrayList<>();
+    for (var artifact : artifacts) {
+      var target = linkDir.resolve(artifact.getFileName().toString());
+      try {
+        linked.add(Files.createLink(target, artifact));
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        linked.add(Files.copy(artifact, target));
+      }
+    }
+    return List.copyOf(linked);
+  }
+
+  // directories without the suffix are of older versions, which were named by the key only
+  @Contract(pure = true)
+  private @NotNull String toKey(@NotNull Path entry) {
+    var name = entry.getFileName().toString();
+    var index = name.indexOf(ENTRY_SUFFIX_DELIMITER);
+    return index == -1 ? name : name.substring(0, index);
+  }
+
+  @Contract(pure = true)
+  private @NotNull Optional<List<Path>> findArtifacts(@NotNull Path entry) {
+    if (!Files.isDirectory(entry)) {
+      return Optional.empty();
+    }
+    try (var stream = Files.list(entry)) {
+      var files = stream.sorted().toList();
+      return files.isEmpty() ? Optional.empty() : Optional.of(files);
+    } catch (IOException e) {
+      return Optional.empty();
+    }
+  }
+
+  @Contract(pure = true)
+  private @NotNull FileTime lastModifiedTime(@NotNull Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Contract(pure = true)
+  private long size(@NotNull Path path) {
+    try {
+      return Files.size(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @FunctionalInterface
+  interface Generator {
+
+    @CheckReturnValue
+    @NotNull
+    CloseablePath generate() throws IOException;
+  }
+
+  @FunctionalInterface
+  interface MultiGenerator {
+
+    @CheckReturnValue
+    @NotNull
+    List<@NotNull CloseablePath> generate() throws IOException;
+  }
+}
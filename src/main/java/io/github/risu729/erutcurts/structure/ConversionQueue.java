@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure;
+
+import io.github.risu729.erutcurts.util.EmbedUtil;
+import java.awt.Color;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import lombok.experimental.UtilityClass;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.User;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// runs conversions on virtual threads, so that the event threads of JDA are never blocked
+// jobs waiting for downloads hold only a virtual thread, while CPU-heavy stages are limited by
+// the number of processors
+// the number of accepted jobs is bounded per owner and in total, and new jobs are rejected with a
+// notice when either is full, so that one guild cannot fill the queue for others
+// queued jobs are started by the priority, then in round-robin across guilds and DMs, and then
+// the cheapest job of the guild first, so that a guild with huge conversions cannot starve others
+@UtilityClass
+class ConversionQueue {
+
+  private final int MAX_JOBS = 32;
+  private final int MAX_JOBS_PER_OWNER = 4;
+  private final int MAX_CPU_JOBS = Math.max(1, Runtime.getRuntime().availableProcessors());
+  // more jobs than processors are started as they also wait for downloads
+  private final int MAX_RUNNING_JOBS = MAX_CPU_JOBS * 2;
+
+  private final ExecutorService EXECUTOR =
+      Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("conversion-", 0).factory());
+
+  private final Semaphore CPU_PERMITS = new Semaphore(MAX_CPU_JOBS, true);
+
+  // guarded by itself, owners are kept in the order of the round-robin
+  private final Map<Priority, LinkedHashMap<String, PriorityQueue<Job>>> QUEUES =
+      new EnumMap<>(Priority.class);
+  // the number of queued and running jobs of each owner, guarded by QUEUES
+  private final Map<String, Integer> OWNER_JOBS = new HashMap<>();
+  private int queuedJobs;
+  private int runningJobs;
+  private long sequence;
+
+  static {
+    for (var priority : Priority.values()) {
+      QUEUES.put(priority, new LinkedHashMap<>());
+    }
+  }
+
+  // jobs are shared by the guild, or by the user in DMs
+  @Contract(pure = true)
+  @NotNull
+  String getOwner(@Nullable Guild guild, @NotNull User user) {
+    return guild == null ? "user:" + user.getId() : "guild:" + guild.getId();
+  }
+
+  // cost is an estimate such as the total size of the attachments, Long.MAX_VALUE if unknown
+  // errors are passed to onError on the thread of the job, such as to reply the stack trace
+  // reply is called with the position in the queue if not started immediately, or with a notice
+  // if too many jobs are accepted, in which case the job is dropped as this is not an error
+  void submit(
+      @NotNull String owner,
+      @NotNull Priority priority,
+      long cost,
+      @NotNull Runnable job,
+      @NotNull Consumer<? super Throwable> onError,
+      @NotNull Consumer<? super MessageEmbed> reply) {
+    int position; // -1 if rejected
+    synchronized (QUEUES) {
+      if (OWNER_JOBS.getOrDefault(owner, 0) >= MAX_JOBS_PER_OWNER
+          || queuedJobs + runningJobs >= MAX_JOBS) {
+        position = -1;
+      } else {
+        var queued = new Job(owner, cost, sequence++, job, onError);
+        QUEUES.get(priority).computeIfAbsent(owner, key -> new PriorityQueue<>()).add(queued);
+        queuedJobs++;
+        OWNER_JOBS.merge(owner, 1, Integer::sum);
+        dispatch();
+        position = getPosition(queued);
+      }
+    }
+    if (position == -1) {
+      reply.accept(
+          EmbedUtil.createDefaultBuilder("混雑中")
+              .setColor(Color.ORANGE)
+              .setDescription("変換が混み合っています。しばらくしてから再度お試しください。")
+              .build());
+    } else if (position > 0) {
+      reply.accept(
+          EmbedUtil.createDefaultBuilder("変換待ち")
+              .setDescription("順番待ちです。（%d番目）".formatted(position))
+              .build());
+    }
+  }
+
+  // wraps CPU-heavy stages such as parsing and zipping, waiting in FIFO order for a permit
+  <T, E extends Exception> T runCpuBound(@NotNull Stage<T, E> stage) throws E {
+    CPU_PERMITS.acquireUninterruptibly();
+    try {
+      return stage.run();
+    } finally {
+      CPU_PERMITS.release();
+    }
+  }
+
+  // must be called while holding the lock of QUEUES
+  private void dispatch() {
+    while (runningJobs < MAX_RUNNING_JOBS && queuedJobs > 0) {
+      var job = poll(QUEUES);
+      queuedJobs--;
+      runningJobs++;
+      try {
+        EXECUTOR.execute(() -> run(job));
+      } catch (RuntimeException e) {
+        runningJobs--;
+        release(job);
+        job.onError().accept(e);
+      }
+    }
+  }
+
+  private void run(@NotNull Job job) {
+    try {
+      job.job().run();
+    } catch (RuntimeException | Error e) {
+      job.onError().accept(e);
+    } finally {
+      synchronized (QUEUES) {
+        runningJobs--;
+        release(job);
+        dispatch();
+      }
+    }
+  }
+
+  // must be called while holding the lock of QUEUES
+  private void release(@NotNull Job job) {
+    OWNER_JOBS.computeIfPresent(job.owner(), (owner, count) -> count == 1 ? null : count - 1);
+  }
+
+  // the owner of the polled job is moved to the end for the round-robin
+  @NotNull
+  private Job poll(@NotNull Map<Priority, LinkedHashMap<String, PriorityQueue<Job>>> queues) {
+    for (var owners : queues.values()) {
+      var iterator = owners.entrySet().iterator();
+      if (!iterator.hasNext()) {
+        continue;
+      }
+      var entry = iterator.next();
+      var job = entry.getValue().remove();
+      iterator.remove();
+      if (!entry.getValue().isEmpty()) {
+        owners.put(entry.getKey(), entry.getValue());
+      }
+      return job;
+    }
+    throw new IllegalStateException("No queued jobs");
+  }
+
+  // simulates the dispatch on a copy of the queues, 0 if already started
+  // must be called while holding the lock of QUEUES
+  private int getPosition(@NotNull Job job) {
+    Map<Priority, LinkedHashMap<String, PriorityQueue<Job>>> copy = new EnumMap<>(Priority.class);
+    var queued = false;
+    for (var entry : QUEUES.entrySet()) {
+      LinkedHashMap<String, PriorityQueue<Job>> owners = new LinkedHashMap<>();
+      entry.getValue().forEach((owner, jobs) -> owners.put(owner, new PriorityQueue<>(jobs)));
+      queued |= owners.containsKey(job.owner()) && owners.get(job.owner()).contains(job);
+      copy.put(entry.getKey(), owners);
+    }
+    if (!queued) {
+      return 0;
+    }
+    for (int position = 1; ; position++) {
+      if (poll(copy) == job) {
+        return position;
+      }
+    }
+  }
+
+  // commands run by users come before packs generated automatically from sent structures
+  enum Priority {
+    COMMAND,
+    AUTOMATIC
+  }
+
+  @FunctionalInterface
+  interface Stage<T, E extends Exception> {
+
+    T run() throws E;
+  }
+
+  // jobs of the same cost are started in the order of submission
+  private record Job(
+      @NotNull String owner,
+      long cost,
+      long sequence,
+      @NotNull Runnable job,
+      @NotNull Consumer<? super Throwable> onError)
+      implements Comparable<Job> {
+
+    private static final Comparator<Job> COMPARATOR =
+        Comparator.comparingLong(Job::cost).thenComparingLong(Job::sequence);
+
+    @Override
+    public int compareTo(@NotNull Job other) {
+      return COMPARATOR.compare(this, other);
+    }
+  }
+}
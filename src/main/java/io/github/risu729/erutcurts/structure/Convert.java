@@ -8,8 +8,11 @@
 
 package io.github.risu729.erutcurts.structure;
 
+import io.github.risu729.erutcurts.misc.Notifications;
+import io.github.risu729.erutcurts.util.Attachments;
 import io.github.risu729.erutcurts.util.CommandOptionUtil;
 import io.github.risu729.erutcurts.util.interaction.ExecutableSlashCommandData;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
@@ -28,7 +31,10 @@ final class Convert extends ExecutableSlashCommandData {
             .addOptions(TargetType.OPTION)
             .addOptions(
                 CommandOptionUtil.createVarArgs(
-                    new OptionData(OptionType.ATTACHMENT, COMMAND_FILE, "変換する.mcstructureファイル")
+                    new OptionData(
+                            OptionType.ATTACHMENT,
+                            COMMAND_FILE,
+                            "変換する.mcstructure, .nbt, .schemファイル、またはそれらを含む.zipファイル")
                         .setRequired(true),
                     1,
                     OptionData.MAX_CHOICES - 2))); // -2 for type option and required one
@@ -46,6 +52,17 @@ final class Convert extends ExecutableSlashCommandData {
             .filter(option -> option.getName().startsWith(COMMAND_FILE))
             .map(OptionMapping::getAsAttachment)
             .toList();
-    event.getHook().sendFiles(TargetType.fromEvent(event).convert(attachments)).queue();
+    var targetType = TargetType.fromEvent(event);
+    ConversionQueue.submit(
+        ConversionQueue.getOwner(event.getGuild(), event.getUser()),
+        ConversionQueue.Priority.COMMAND,
+        attachments.stream().mapToLong(Message.Attachment::getSize).sum(),
+        () ->
+            targetType.convert(
+                attachments,
+                Attachments.getMaxFileSize(event.getGuild()),
+                FileSender.of(event.getHook(), event.getChannel())),
+        e -> Notifications.replyStackTrace(event, e),
+        embed -> event.getHook().sendMessageEmbeds(embed).queue());
   }
 }
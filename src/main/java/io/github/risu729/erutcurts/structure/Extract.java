@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import io.github.risu729.erutcurts.misc.Notifications;
+import io.github.risu729.erutcurts.structure.behavior.StructureTemplates;
+import io.github.risu729.erutcurts.util.Attachments;
+import io.github.risu729.erutcurts.util.EmbedUtil;
+import io.github.risu729.erutcurts.util.file.CloseablePath;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import io.github.risu729.erutcurts.util.interaction.ExecutableSlashCommandData;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.List;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.interactions.commands.build.Commands;
+import net.dv8tion.jda.api.interactions.commands.build.OptionData;
+import org.jetbrains.annotations.NotNull;
+
+// extracts structures saved in a world, as .mcstructure files or converted like /convert
+final class Extract extends ExecutableSlashCommandData {
+
+  private static final String COMMAND_FILE = "file";
+  private static final String MCSTRUCTURE_TYPE = MCExtension.MCSTRUCTURE.toString();
+  private static final Extract INSTANCE = new Extract();
+
+  private Extract() {
+    super(
+        Commands.slash("extract", "ワールドに保存されたストラクチャーを取り出します")
+            .addOptions(
+                new OptionData(
+                        TargetType.OPTION.getType(),
+                        TargetType.OPTION.getName(),
+                        TargetType.OPTION.getDescription())
+                    .setRequired(true)
+                    .addChoice(MCSTRUCTURE_TYPE, MCSTRUCTURE_TYPE)
+                    .addChoices(TargetType.OPTION.getChoices()),
+                new OptionData(OptionType.ATTACHMENT, COMMAND_FILE, "取り出す.mcworldファイル")
+                    .setRequired(true)));
+  }
+
+  static @NotNull Extract getInstance() {
+    return INSTANCE;
+  }
+
+  @Override
+  public void execute(@NotNull SlashCommandInteractionEvent event) {
+    event.deferReply().queue(); // defer reply to prevent timeout
+    var world = checkNotNull(event.getOption(COMMAND_FILE, OptionMapping::getAsAttachment));
+    checkArgument(
+        FileUtil.isExtension(world.getFileName(), MCExtension.MCWORLD.toString()),
+        "Not a world: %s",
+        world.getFileName());
+    // the world is downloaded and read in the queue, not on the event thread of JDA
+    ConversionQueue.submit(
+        ConversionQueue.getOwner(event.getGuild(), event.getUser()),
+        ConversionQueue.Priority.COMMAND,
+        world.getSize(),
+        () -> extract(event, world),
+        e -> Notifications.replyStackTrace(event, e),
+        embed -> event.getHook().sendMessageEmbeds(embed).queue());
+  }
+
+  private void extract(
+      @NotNull SlashCommandInteractionEvent event, Message.@NotNull Attachment world) {
+    var maxFileSize = Attachments.getMaxFileSize(event.getGuild());
+    var sender = FileSender.of(event.getHook(), event.getChannel());
+
+    try (var closeableTempDir = CloseablePath.of(FileUtil.createTempDir())) {
+      var tempDir = closeableTempDir.path();
+      var downloaded = Attachments.download(world, tempDir, true);
+      var structuresDir = Files.createDirectory(tempDir.resolve("structures"));
+      var structures =
+          ConversionQueue.runCpuBound(() -> StructureTemplates.extract(downloaded, structuresDir));
+      if (structures.isEmpty()) {
+        sender
+            .send(
+                EmbedUtil.createDefaultBuilder("ストラクチャーの取り出し")
+                    .setDescription("ストラクチャーが見つかりませんでした")
+                    .build())
+            .queue();
+        return;
+      }
+      if (MCSTRUCTURE_TYPE.equals(
+          event.getOption(TargetType.OPTION.getName(), OptionMapping::getAsString))) {
+        sender.sendAll(List.copyOf(structures.values()), maxFileSize);
+      } else {
+        TargetType.fromEvent(event).convert(structures, maxFileSize, sender);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
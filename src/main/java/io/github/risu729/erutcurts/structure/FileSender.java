@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import net.dv8tion.jda.api.interactions.InteractionHook;
+import net.dv8tion.jda.api.requests.RestAction;
+import net.dv8tion.jda.api.utils.FileUpload;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+// abstraction of replying to a conversion request, by an interaction hook or a message reply
+interface FileSender {
+
+  @Contract("_, _ -> new")
+  static @NotNull FileSender of(@NotNull InteractionHook hook, @NotNull MessageChannel channel) {
+    return new FileSender() {
+      @Override
+      public @NotNull MessageChannel channel() {
+        return channel;
+      }
+
+      @Override
+      public @NotNull RestAction<Message> send(
+          @NotNull Collection<? extends @NotNull FileUpload> files) {
+        return hook.sendFiles(files);
+      }
+
+      @Override
+      public @NotNull RestAction<Message> send(@NotNull MessageEmbed embed) {
+        return hook.sendMessageEmbeds(embed);
+      }
+    };
+  }
+
+  @Contract("_ -> new")
+  static @NotNull FileSender replyTo(@NotNull Message message) {
+    return new FileSender() {
+      @Override
+      public @NotNull MessageChannel channel() {
+        return message.getChannel();
+      }
+
+      @Override
+      public @NotNull RestAction<Message> send(
+          @NotNull Collection<? extends @NotNull FileUpload> files) {
+        return message.replyFiles(files).mentionRepliedUser(false);
+      }
+
+      @Override
+      public @NotNull RestAction<Message> send(@NotNull MessageEmbed embed) {
+        return message.replyEmbeds(embed).mentionRepliedUser(false);
+      }
+    };
+  }
+
+  @Contract(pure = true)
+  @NotNull
+  MessageChannel channel();
+
+  @CheckReturnValue
+  @NotNull
+  RestAction<Message> send(@NotNull Collection<? extends @NotNull FileUpload> files);
+
+  @CheckReturnValue
+  @NotNull
+  RestAction<Message> send(@NotNull MessageEmbed embed);
+
+  // send files in as few messages as possible without exceeding the limits of a message
+  // files which have already been uploaded to the channel are replied with links instead
+  default void sendAll(@NotNull List<@NotNull Path> files, long maxFileSize) {
+    Map<Path, UploadRegistry.UploadedFile> uploaded = new LinkedHashMap<>();
+    List<Path> notUploaded = new ArrayList<>();
+    Map<Path, String> hashes = new HashMap<>();
+    for (var file : files) {
+      String hash;
+      try {
+        hash = MoreFiles.asByteSource(file).hash(Hashing.sha256()).toString();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      hashes.put(file, hash);
+      UploadRegistry.find(channel(), hash)
+          .ifPresentOrElse(upload -> uploaded.put(file, upload), () -> notUploaded.add(file));
+    }
+    if (!uploaded.isEmpty()) {
+      // the files are uploaded instead if the links cannot be sent
+      try {
+        send(UploadRegistry.createEmbed(uploaded.values())).complete();
+      } catch (RuntimeException e) {
+        UploadRegistry.remove(
+            channel().getId(),
+            uploaded.values().stream().map(UploadRegistry.UploadedFile::messageId).toList());
+        notUploaded.addAll(0, uploaded.keySet());
+      }
+    }
+
+    List<FileUpload> message = new ArrayList<>();
+    Map<String, String> messageHashes = new HashMap<>();
+    long messageSize = 0;
+    for (var file : notUploaded) {
+      long size;
+      try {
+        size = Files.size(file);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      if (!message.isEmpty()
+          && (message.size() >= Message.MAX_FILE_AMOUNT || messageSize + size > maxFileSize)) {
+        sendAndRecord(message, messageHashes);
+        message = new ArrayList<>();
+        messageHashes = new HashMap<>();
+        messageSize = 0;
+      }
+      // FileUpload opens the file immediately, so the file can be deleted after this
+      message.add(FileUpload.fromData(file));
+      messageHashes.put(file.getFileName().toString(), hashes.get(file));
+      messageSize += size;
+    }
+    if (!message.isEmpty()) {
+      sendAndRecord(message, messageHashes);
+    }
+  }
+
+  // hashes is keyed by the filename
+  private void sendAndRecord(
+      @NotNull Collection<? extends @NotNull FileUpload> files,
+      @NotNull Map<@NotNull String, @NotNull String> hashes) {
+    send(files).queue(message -> UploadRegistry.record(message, hashes));
+  }
+}
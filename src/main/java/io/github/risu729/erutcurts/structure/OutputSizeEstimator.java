@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import io.github.risu729.erutcurts.structure.behavior.PackOptions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import lombok.experimental.UtilityClass;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+// estimates the size of generated files from the size of uncompressed .mcstructure files
+// this only uses attachment metadata, so it can be done before downloading anything
+@UtilityClass
+class OutputSizeEstimator {
+
+  // compressed size / uncompressed size, block indices are repetitive so deflate works well
+  // these are rough upper bounds of typical structures
+  private final Map<CompressionLevel, Double> COMPRESSION_RATIOS =
+      Map.of(CompressionLevel.NORMAL, 0.3, CompressionLevel.ULTRA, 0.25);
+
+  private final CompressionLevel DEFAULT_LEVEL = PackOptions.DEFAULT.compressionLevel();
+  private final CompressionLevel BEST_LEVEL = CompressionLevel.ULTRA;
+
+  // manifest, metadata and pack icon
+  private final long PACK_OVERHEAD = 16 * 1024;
+  // level.dat, world icon and functions in addition to the behavior pack
+  private final long WORLD_OVERHEAD = 64 * 1024;
+
+  // leave a margin because the estimation is not accurate
+  private final double SAFETY_FACTOR = 0.9;
+
+  @Contract(pure = true)
+  long estimate(@NotNull TargetType type, long structuresSize, @NotNull CompressionLevel level) {
+    checkArgument(structuresSize >= 0);
+    var overhead =
+        switch (type) {
+          case BEHAVIOR, SINGLE_BEHAVIOR, SINGLE_BEHAVIOR_ADDON -> PACK_OVERHEAD;
+          case WORLD, PREPLACED_WORLD, TEMPLATE -> WORLD_OVERHEAD;
+        };
+    // preplaced worlds have the blocks in the db as well as the structure files
+    var copies = type == TargetType.PREPLACED_WORLD ? 2 : 1;
+    return (long) Math.ceil(structuresSize * copies * COMPRESSION_RATIOS.get(level)) + overhead;
+  }
+
+  // the default level is kept unless the output is estimated to exceed the limit with it
+  // the estimation is only a hint, outputs are checked by their actual sizes after generation
+  @Contract(pure = true)
+  @NotNull
+  CompressionLevel chooseCompressionLevel(
+      @NotNull TargetType type, long structuresSize, long maxFileSize) {
+    return fits(type, structuresSize, DEFAULT_LEVEL, maxFileSize) ? DEFAULT_LEVEL : BEST_LEVEL;
+  }
+
+  // split items into parts which fit the limit with the best compression, first fit decreasing
+  // an item which does not fit by itself is put in its own part
+  @Contract(pure = true)
+  <T> @NotNull @Unmodifiable List<@NotNull List<T>> split(
+      @NotNull TargetType type,
+      @NotNull List<T> items,
+      @NotNull ToLongFunction<? super T> sizeFunction,
+      long maxFileSize) {
+    var totalSize = items.stream().mapToLong(sizeFunction).sum();
+    if (fits(type, totalSize, BEST_LEVEL, maxFileSize)) {
+      return List.of(List.copyOf(items));
+    }
+
+    List<List<T>> parts = new ArrayList<>();
+    List<Long> partSizes = new ArrayList<>();
+    items.stream()
+        .sorted(Comparator.comparingLong(sizeFunction).reversed())
+        .forEachOrdered(
+            item -> {
+              var size = sizeFunction.applyAsLong(item);
+              for (int i = 0; i < parts.size(); i++) {
+                if (fits(type, partSizes.get(i) + size, BEST_LEVEL, maxFileSize)) {
+                  parts.get(i).add(item);
+                  partSizes.set(i, partSizes.get(i) + size);
+                  return;
+                }
+              }
+              parts.add(new ArrayList<>(List.of(item)));
+              partSizes.add(size);
+            });
+    return parts.stream().map(List::copyOf).toList();
+  }
+
+  @Contract(pure = true)
+  private boolean fits(
+      @NotNull TargetType type,
+      long structuresSize,
+      @NotNull CompressionLevel level,
+      long maxFileSize) {
+    return estimate(type, structuresSize, level) <= maxFileSize * SAFETY_FACTOR;
+  }
+}
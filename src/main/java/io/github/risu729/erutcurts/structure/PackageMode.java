@@ -13,6 +13,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.common.collect.MoreCollectors;
 import io.github.risu729.erutcurts.Erutcurts;
+import io.github.risu729.erutcurts.misc.Notifications;
+import io.github.risu729.erutcurts.structure.behavior.StructureArchive;
+import io.github.risu729.erutcurts.structure.nbt.JavaStructures;
 import io.github.risu729.erutcurts.util.Attachments;
 import io.github.risu729.erutcurts.util.Caches;
 import io.github.risu729.erutcurts.util.EmbedUtil;
@@ -81,20 +84,8 @@ public final class PackageMode extends ExecutableSlashCommandData {
     }
 
     if (isPackageMode && subcommand == Subcommand.CONVERT) {
-      var attachments =
-          Erutcurts.getMessageChannelById(channelId)
-              .getHistoryAfter(getStartMessage(channelId).orElseThrow(), MESSAGE_HISTORY_LIMIT)
-              .complete()
-              .getRetrievedHistory()
-              .stream()
-              .filter(Predicate.not(Erutcurts::isSelfMessage))
-              .map(
-                  message ->
-                      Attachments.getAttachmentsWithExtension(
-                          message, MCExtension.MCSTRUCTURE.toString()))
-              .flatMap(List::stream)
-              .toList();
-      event.getHook().sendFiles(TargetType.fromEvent(event).convert(attachments)).queue();
+      // the history blocks until the response, so it is retrieved on a virtual thread
+      Thread.startVirtualThread(() -> submitConvert(event, channelId));
       return;
     }
 
@@ -119,6 +110,82 @@ public final class PackageMode extends ExecutableSlashCommandData {
         .queue();
   }
 
+  // the cost is the total size of the attachments in the package, as for other conversions
+  private void submitConvert(
+      @NotNull SlashCommandInteractionEvent event, @NotNull String channelId) {
+    List<Message> history;
+    try {
+      history =
+          Erutcurts.getMessageChannelById(channelId)
+              .getHistoryAfter(getStartMessage(channelId).orElseThrow(), MESSAGE_HISTORY_LIMIT)
+              .complete()
+              .getRetrievedHistory();
+    } catch (RuntimeException e) {
+      Notifications.replyStackTrace(event, e);
+      return;
+    }
+    var cost =
+        history.stream()
+            .filter(Predicate.not(Erutcurts::isSelfMessage))
+            .map(Message::getAttachments)
+            .flatMap(List::stream)
+            .mapToLong(Message.Attachment::getSize)
+            .sum();
+    ConversionQueue.submit(
+        ConversionQueue.getOwner(event.getGuild(), event.getUser()),
+        ConversionQueue.Priority.COMMAND,
+        cost,
+        () -> convert(event, history),
+        e -> Notifications.replyStackTrace(event, e),
+        embed -> event.getHook().sendMessageEmbeds(embed).queue());
+  }
+
+  private void convert(
+      @NotNull SlashCommandInteractionEvent event, @NotNull List<@NotNull Message> history) {
+    var targetType = TargetType.fromEvent(event);
+    var attachments =
+        history.stream()
+            .filter(Predicate.not(Erutcurts::isSelfMessage))
+            .map(
+                message ->
+                    Attachments.getAttachmentsWithExtension(
+                        message,
+                        MCExtension.MCSTRUCTURE.toString(),
+                        StructureArchive.EXTENSION,
+                        MCExtension.NBT.toString(),
+                        JavaStructures.SCHEMATIC_EXTENSION))
+            .flatMap(List::stream)
+            .toList();
+    var maxFileSize = Attachments.getMaxFileSize(event.getGuild());
+    var sender = FileSender.of(event.getHook(), event.getChannel());
+    // packs sent by users are merged with the structures instead of being patched
+    var packs =
+        history.stream()
+            .filter(Predicate.not(Erutcurts::isSelfMessage))
+            .map(
+                message ->
+                    Attachments.getAttachmentsWithExtension(
+                        message, MCExtension.MCPACK.toString(), MCExtension.MCADDON.toString()))
+            .flatMap(List::stream)
+            .toList();
+    if (targetType == TargetType.BEHAVIOR && !packs.isEmpty()) {
+      targetType.merge(packs, attachments, maxFileSize, sender);
+      return;
+    }
+    // the latest output in the package, only of the bot as other packs or worlds in the channel
+    // do not have the metadata to be patched
+    var previous =
+        history.stream()
+            .filter(Erutcurts::isSelfMessage)
+            .map(Message::getAttachments)
+            .filter(messageAttachments -> messageAttachments.size() == 1)
+            .map(messageAttachments -> messageAttachments.get(0))
+            .filter(attachment -> targetType.canPatch(attachment.getFileName()))
+            .findFirst()
+            .orElse(null);
+    targetType.convert(attachments, previous, maxFileSize, sender);
+  }
+
   // check if the last executed package command is start
   @Contract(pure = true)
   private @NotNull Optional<Message> getStartMessage(@NotNull String channelId) {
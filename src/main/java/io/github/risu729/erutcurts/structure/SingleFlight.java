@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.NotNull;
+
+// runs a task once for concurrent calls with an equal key, and passes the same result to each
+// the result is closed after the last caller has consumed it
+// results are not kept after the task finishes, so a later call runs the task again
+@UtilityClass
+class SingleFlight {
+
+  private final Map<Object, Flight<?>> FLIGHTS = new ConcurrentHashMap<>();
+
+  // the consumer runs on the thread of each caller, and errors of the task are thrown to all
+  @SuppressWarnings("unchecked")
+  <T extends AutoCloseable> void run(
+      @NotNull Object key,
+      @NotNull Supplier<? extends T> task,
+      @NotNull Consumer<? super T> consumer) {
+    var created = new boolean[1];
+    var flight =
+        (Flight<T>)
+            FLIGHTS.compute(
+                key,
+                (k, current) -> {
+                  if (current != null) {
+                    current.join();
+                    return current;
+                  }
+                  created[0] = true;
+                  return new Flight<>();
+                });
+    if (created[0]) {
+      try {
+        flight.result().complete(task.get());
+      } catch (RuntimeException | Error e) {
+        flight.result().completeExceptionally(e);
+      } finally {
+        FLIGHTS.remove(key, flight);
+      }
+    }
+    try {
+      consumer.accept(flight.get());
+    } finally {
+      flight.release();
+    }
+  }
+
+  // callers join only while the flight is in the map, and the creator leaves after removing it,
+  // so the count never drops to zero before the task finishes
+  private static final class Flight<T extends AutoCloseable> {
+
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private int callers = 1;
+
+    private @NotNull CompletableFuture<T> result() {
+      return result;
+    }
+
+    private synchronized void join() {
+      callers++;
+    }
+
+    private @NotNull T get() {
+      try {
+        return result.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException runtimeException) {
+          throw runtimeException;
+        }
+        if (e.getCause() instanceof Error error) {
+          throw error;
+        }
+        throw e;
+      }
+    }
+
+    private void release() {
+      synchronized (this) {
+        if (--callers > 0) {
+          return;
+        }
+      }
+      if (!result.isCompletedExceptionally()) {
+        try {
+          result.join().close();
+        } catch (Exception ignored) {
+          // closing is best effort, the temp files are removed on the next start anyway
+        }
+      }
+    }
+  }
+}
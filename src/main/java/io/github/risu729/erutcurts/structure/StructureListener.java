@@ -13,13 +13,17 @@ import io.github.risu729.erutcurts.misc.Notifications;
 import io.github.risu729.erutcurts.misc.Settings;
 import io.github.risu729.erutcurts.util.Attachments;
 import io.github.risu729.erutcurts.util.interaction.ListenerWithRegistry;
+import java.util.List;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.events.message.MessageBulkDeleteEvent;
+import net.dv8tion.jda.api.events.message.MessageDeleteEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import org.jetbrains.annotations.NotNull;
 
 public final class StructureListener extends ListenerWithRegistry {
 
   public StructureListener() {
-    super(PackageMode.getInstance(), Convert.getInstance());
+    super(PackageMode.getInstance(), Convert.getInstance(), Extract.getInstance());
   }
 
   // pack auto-generation
@@ -57,20 +61,34 @@ public final class StructureListener extends ListenerWithRegistry {
       // lasts in 10 secs, but this doesn't take that much time
       event.getChannel().sendTyping().queue();
 
-      Notifications.sendLog(
-          "Auto-generated pack.",
-          event.isFromGuild() ? event.getGuild() : null,
-          event.getAuthor(),
-          structureAttachments);
+      Notifications.sendLog("Auto-generated pack.", message, structureAttachments);
 
-      message
-          .replyFiles(TargetType.BEHAVIOR.convert(structureAttachments))
-          .mentionRepliedUser(false)
-          .queue();
+      var maxFileSize = Attachments.getMaxFileSize(event.isFromGuild() ? event.getGuild() : null);
+      ConversionQueue.submit(
+          ConversionQueue.getOwner(
+              event.isFromGuild() ? event.getGuild() : null, event.getAuthor()),
+          ConversionQueue.Priority.AUTOMATIC,
+          structureAttachments.stream().mapToLong(Message.Attachment::getSize).sum(),
+          () ->
+              TargetType.BEHAVIOR.convert(
+                  structureAttachments, maxFileSize, FileSender.replyTo(message)),
+          e -> Notifications.replyStackTrace(message, e),
+          embed -> message.replyEmbeds(embed).mentionRepliedUser(false).queue());
 
     } catch (RuntimeException | Error exception) {
       Notifications.replyStackTrace(message, exception);
       throw exception;
     }
   }
+
+  // links to deleted outputs are not sent for duplicates
+  @Override
+  public void onMessageDelete(@NotNull MessageDeleteEvent event) {
+    UploadRegistry.remove(event.getChannel().getId(), List.of(event.getMessageId()));
+  }
+
+  @Override
+  public void onMessageBulkDelete(@NotNull MessageBulkDeleteEvent event) {
+    UploadRegistry.remove(event.getChannel().getId(), event.getMessageIds());
+  }
 }
@@ -8,21 +8,35 @@
 
 package io.github.risu729.erutcurts.structure;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
 import com.google.common.collect.MoreCollectors;
+import com.google.common.collect.Streams;
 import io.github.risu729.erutcurts.structure.behavior.Behavior;
 import io.github.risu729.erutcurts.structure.behavior.Identifier;
+import io.github.risu729.erutcurts.structure.behavior.PackMerger;
+import io.github.risu729.erutcurts.structure.behavior.PackOptions;
+import io.github.risu729.erutcurts.structure.behavior.PackPatcher;
+import io.github.risu729.erutcurts.structure.behavior.StructureArchive;
 import io.github.risu729.erutcurts.structure.behavior.World;
+import io.github.risu729.erutcurts.structure.nbt.JavaStructures;
 import io.github.risu729.erutcurts.util.Attachments;
 import io.github.risu729.erutcurts.util.file.CloseablePath;
 import io.github.risu729.erutcurts.util.file.FileUtil;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import lombok.AccessLevel;
 import lombok.Getter;
@@ -35,10 +49,10 @@ import net.dv8tion.jda.api.interactions.commands.Command;
 import net.dv8tion.jda.api.interactions.commands.OptionMapping;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
 import net.dv8tion.jda.api.interactions.commands.build.OptionData;
-import net.dv8tion.jda.api.utils.FileUpload;
 import org.jetbrains.annotations.CheckReturnValue;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 @Accessors(fluent = true)
 @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
@@ -46,13 +60,22 @@ import org.jetbrains.annotations.NotNull;
 enum TargetType {
   BEHAVIOR(true),
   SINGLE_BEHAVIOR(false),
-  WORLD(true);
+  // the packs of SINGLE_BEHAVIOR bundled into .mcaddon files, to be imported at once
+  SINGLE_BEHAVIOR_ADDON(false),
+  WORLD(true),
+  // blocks are written into the world's db so that opening the world does not load structures
+  PREPLACED_WORLD(true),
+  // the world and the world template of the same structures
+  TEMPLATE(true);
   /*
   STRUCTURA(false),
   SLICED_IMAGES(false),
   */
 
   private static final String COMMAND_TYPE = "type";
+  // local and central headers of a stored entry, with a margin for the filename
+  private static final long ADDON_ENTRY_OVERHEAD = 1024;
+  private static final int MAX_ADDON_ENTRIES = 0xffff;
   static final OptionData OPTION =
       new OptionData(OptionType.STRING, COMMAND_TYPE, "変換先")
           .setRequired(true)
@@ -74,67 +97,440 @@ enum TargetType {
         .collect(MoreCollectors.onlyElement());
   }
 
+  void convert(
+      @NotNull Collection<? extends Message.@NotNull Attachment> attachments,
+      long maxFileSize,
+      @NotNull FileSender sender) {
+    convert(attachments, null, maxFileSize, sender);
+  }
+
+  // the output size is estimated before downloading to choose the compression level and the parts
+  // if the output fits in one file, the previous output is updated instead of generated again
+  // identical requests in progress share one conversion, and each sender sends the same outputs
+  void convert(
+      @NotNull Collection<? extends Message.@NotNull Attachment> attachments,
+      Message.@Nullable Attachment previous,
+      long maxFileSize,
+      @NotNull FileSender sender) {
+    checkArgument(previous == null || canPatch(previous.getFileName()), "Cannot be patched");
+    List<Message.Attachment> attachmentList = List.copyOf(attachments);
+    SingleFlight.run(
+        new ConvertKey(
+            this,
+            toIds(attachmentList),
+            previous == null ? 0 : previous.getIdLong(),
+            maxFileSize),
+        () ->
+            Outputs.generate(
+                tempDir -> generateOutputs(attachmentList, previous, maxFileSize, tempDir)),
+        outputs -> sender.sendAll(outputs.files(), maxFileSize));
+  }
+
   @CheckReturnValue
-  @NotNull
-  List<@NotNull FileUpload> convert(
-      @NotNull Collection<? extends Message.@NotNull Attachment> attachments) {
-    try (var closeableTempDir = CloseablePath.of(FileUtil.createTempDir())) {
-      var tempDir = closeableTempDir.path();
-      Map<Identifier, Path> attachmentPaths =
-          attachments.stream()
+  private @NotNull List<@NotNull Path> generateOutputs(
+      @NotNull List<Message.@NotNull Attachment> attachments,
+      Message.@Nullable Attachment previous,
+      long maxFileSize,
+      @NotNull Path tempDir) {
+    if (attachments.stream().anyMatch(TargetType::needsPreprocessing)) {
+      return generatePreprocessed(attachments, maxFileSize, tempDir);
+    }
+    List<List<Message.Attachment>> parts =
+        split(attachments, Message.Attachment::getSize, maxFileSize);
+    var partOptions = chooseOptions(parts, Message.Attachment::getSize, maxFileSize);
+
+    // the previous output is downloaded together with the attachments
+    List<Message.Attachment> downloads = new ArrayList<>(attachments);
+    var patchesPrevious = previous != null && parts.size() == 1;
+    if (patchesPrevious) {
+      downloads.add(previous);
+    }
+    var paths = Attachments.download(downloads, tempDir, true);
+    Map<Message.Attachment, Path> attachmentPaths =
+        Streams.zip(attachments.stream(), paths.stream(), Map::entry)
+            .collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, Map.Entry::getValue));
+    var previousPath = patchesPrevious ? paths.get(paths.size() - 1) : null;
+
+    List<Path> outputs = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      Map<Identifier, Path> structures =
+          parts.get(i).stream()
               .collect(
-                  Collectors.toUnmodifiableMap(
-                      attachment ->
-                          Identifier.fromString(
-                              FileUtil.getFilenameWithoutExtension(attachment.getFileName())),
-                      attachment -> Attachments.download(attachment, tempDir, true)));
-
-      if (isMultipleFiles) {
-        switch (this) {
-          case BEHAVIOR -> {
-            try (var closeablePath = Behavior.generate(attachmentPaths)) {
-              return List.of(FileUpload.fromData(closeablePath.path()));
-            } catch (IOException e) {
-              throw new UncheckedIOException(e);
-            }
-          }
-          case WORLD -> {
-            try (var closeablePath = World.generate(attachmentPaths)) {
-              return List.of(FileUpload.fromData(closeablePath.path()));
-            } catch (IOException e) {
-              throw new UncheckedIOException(e);
-            }
-          }
-          default -> throw new AssertionError();
-        }
-      }
+                  Collectors.toUnmodifiableMap(TargetType::toIdentifier, attachmentPaths::get));
+      outputs.addAll(generateCached(structures, partOptions.get(i), previousPath, tempDir));
+    }
+    return checkSizes(
+        bundle(
+            outputs,
+            tempDir,
+            maxFileSize,
+            partOptions.stream().allMatch(PackOptions::deterministic)),
+        maxFileSize);
+  }
 
-      // target types converts into multiple files
-      return attachmentPaths.entrySet().stream()
-          .map(
-              entry -> {
-                var structureName = entry.getKey();
-                var structurePath = entry.getValue();
-                if (this == SINGLE_BEHAVIOR) {
-                  try (var closeablePath =
-                      Behavior.generate(Map.of(structureName, structurePath))) {
-                    return FileUpload.fromData(closeablePath.path());
+  // merges the structures in the packs and the attachments into one pack
+  // entries of the packs are copied as is, so their sizes are subtracted from the limit
+  void merge(
+      @NotNull Collection<? extends Message.@NotNull Attachment> packs,
+      @NotNull Collection<? extends Message.@NotNull Attachment> attachments,
+      long maxFileSize,
+      @NotNull FileSender sender) {
+    checkState(this == BEHAVIOR, "Only behavior packs can be merged");
+    // packs and structures are downloaded separately, so the budget is checked for both first
+    Attachments.checkSize(Streams.concat(packs.stream(), attachments.stream()).toList());
+    var packsSize = packs.stream().mapToLong(Message.Attachment::getSize).sum();
+    var options =
+        chooseOptions(
+                List.of(List.copyOf(attachments)),
+                Message.Attachment::getSize,
+                maxFileSize - packsSize)
+            .get(0);
+
+    List<Message.Attachment> packList = List.copyOf(packs);
+    List<Message.Attachment> attachmentList = List.copyOf(attachments);
+    SingleFlight.run(
+        new MergeKey(toIds(packList), toIds(attachmentList), maxFileSize),
+        () ->
+            Outputs.generate(
+                tempDir -> {
+                  try {
+                    var structures = downloadStructures(attachmentList, tempDir);
+                    var packPaths = Attachments.download(packList, tempDir, true);
+                    // moved into the temp dir of the outputs to be kept until sent by all
+                    try (var merged =
+                        ConversionQueue.runCpuBound(
+                            () -> PackMerger.merge(packPaths, structures, options))) {
+                      return checkSizes(
+                          List.of(
+                              Files.move(
+                                  merged.path(), tempDir.resolve(merged.path().getFileName()))),
+                          maxFileSize);
+                    }
                   } catch (IOException e) {
                     throw new UncheckedIOException(e);
                   }
-                  /*case STRUCTURA -> throw new UnsupportedOperationException(
-                      "Structura is not supported yet");
-                  case SLICED_IMAGES -> throw new UnsupportedOperationException(
-                      "Sliced images are not supported yet");*/
-                }
-                throw new AssertionError();
-              })
-          .toList();
+                }),
+        outputs -> sender.sendAll(outputs.files(), maxFileSize));
+  }
+
+  // the sizes of structures in archives or of Java Edition are unknown until extracted or
+  // converted, so they are not estimated before downloading, and the previous output is not patched
+  @CheckReturnValue
+  private @NotNull List<@NotNull Path> generatePreprocessed(
+      @NotNull Collection<? extends Message.@NotNull Attachment> attachments,
+      long maxFileSize,
+      @NotNull Path tempDir) {
+    try {
+      return generateOutputs(downloadStructures(attachments, tempDir), maxFileSize, tempDir);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // archives are extracted into the directory, structures of Java Edition are converted into
+  // .mcstructure files, and the other attachments are used as they are
+  @CheckReturnValue
+  private static @NotNull Map<@NotNull Identifier, @NotNull Path> downloadStructures(
+      @NotNull Collection<? extends Message.@NotNull Attachment> attachments,
+      @NotNull Path tempDir)
+      throws IOException {
+    List<Message.Attachment> attachmentList = List.copyOf(attachments);
+    var paths = Attachments.download(attachmentList, tempDir, true);
+    Map<Identifier, Path> structures = new HashMap<>();
+    for (int i = 0; i < attachmentList.size(); i++) {
+      var attachment = attachmentList.get(i);
+      var path = paths.get(i);
+      Map<Identifier, Path> extracted;
+      if (isArchive(attachment)) {
+        extracted = StructureArchive.extract(path, Files.createTempDirectory(tempDir, null));
+      } else if (JavaStructures.isJavaStructure(attachment.getFileName())) {
+        var target =
+            FileUtil.generateUniquePathInDir(
+                FileUtil.appendExtension(
+                    path.resolveSibling(
+                        FileUtil.getFilenameWithoutExtension(path.getFileName().toString())),
+                    MCExtension.MCSTRUCTURE.toString()));
+        extracted =
+            Map.of(
+                toIdentifier(attachment),
+                ConversionQueue.runCpuBound(() -> JavaStructures.convert(path, target)));
+      } else {
+        extracted = Map.of(toIdentifier(attachment), path);
+      }
+      extracted.forEach(
+          (identifier, structure) ->
+              checkArgument(
+                  structures.put(identifier, structure) == null,
+                  "Duplicate structure: %s",
+                  identifier));
+    }
+    return structures;
+  }
+
+  // converts structures which are already on the disk, such as ones extracted from a world
+  void convert(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      long maxFileSize,
+      @NotNull FileSender sender) {
+    try (var closeableTempDir = CloseablePath.of(FileUtil.createTempDir())) {
+      sender.sendAll(
+          generateOutputs(structures, maxFileSize, closeableTempDir.path()), maxFileSize);
+    }
+  }
+
+  @CheckReturnValue
+  private @NotNull List<@NotNull Path> generateOutputs(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      long maxFileSize,
+      @NotNull Path tempDir) {
+    Map<Identifier, Long> sizes =
+        structures.entrySet().stream()
+            .collect(
+                Collectors.toUnmodifiableMap(
+                    Map.Entry::getKey,
+                    entry -> {
+                      try {
+                        return Files.size(entry.getValue());
+                      } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                      }
+                    }));
+    var parts = split(List.copyOf(structures.keySet()), sizes::get, maxFileSize);
+    var partOptions = chooseOptions(parts, sizes::get, maxFileSize);
+
+    List<Path> outputs = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      Map<Identifier, Path> part =
+          parts.get(i).stream()
+              .collect(Collectors.toUnmodifiableMap(Function.identity(), structures::get));
+      outputs.addAll(generateCached(part, partOptions.get(i), null, tempDir));
+    }
+    return checkSizes(
+        bundle(
+            outputs,
+            tempDir,
+            maxFileSize,
+            partOptions.stream().allMatch(PackOptions::deterministic)),
+        maxFileSize);
+  }
+
+  // packs are stored in .mcaddon files as they are, so their total size is the addon's size
+  // returns the outputs as they are unless this is SINGLE_BEHAVIOR_ADDON
+  @CheckReturnValue
+  private @NotNull List<@NotNull Path> bundle(
+      @NotNull List<@NotNull Path> outputs,
+      @NotNull Path tempDir,
+      long maxFileSize,
+      boolean deterministic) {
+    if (this != SINGLE_BEHAVIOR_ADDON) {
+      return outputs;
+    }
+    try {
+      List<Path> addons = new ArrayList<>();
+      List<Path> addon = new ArrayList<>();
+      long addonSize = 0;
+      for (var output : outputs) {
+        var size = Files.size(output) + ADDON_ENTRY_OVERHEAD;
+        if (!addon.isEmpty()
+            && (addonSize + size > maxFileSize || addon.size() >= MAX_ADDON_ENTRIES)) {
+          addons.add(storeAddon(addon, tempDir, deterministic));
+          addon = new ArrayList<>();
+          addonSize = 0;
+        }
+        addon.add(output);
+        addonSize += size;
+      }
+      if (!addon.isEmpty()) {
+        addons.add(storeAddon(addon, tempDir, deterministic));
+      }
+      return addons;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // the estimation may be wrong, so requests are rejected only by the actual sizes
+  @CheckReturnValue
+  private static @NotNull List<@NotNull Path> checkSizes(
+      @NotNull List<@NotNull Path> outputs, long maxFileSize) {
+    for (var output : outputs) {
+      long size;
+      try {
+        size = Files.size(output);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      checkArgument(
+          size <= maxFileSize,
+          "The output exceeds the upload limit: %s bytes > %s bytes",
+          size,
+          maxFileSize);
+    }
+    return outputs;
+  }
+
+  // named after the first pack
+  @CheckReturnValue
+  private static @NotNull Path storeAddon(
+      @NotNull List<@NotNull Path> packs, @NotNull Path dir, boolean deterministic)
+      throws IOException {
+    var name = FileUtil.getFilenameWithoutExtension(packs.get(0).getFileName().toString());
+    return FileUtil.storeZip(
+        FileUtil.generateUniquePathInDir(
+            dir.resolve(FileUtil.appendExtension(Path.of(name), MCExtension.MCADDON.toString()))),
+        packs,
+        deterministic);
+  }
+
+  @Contract(pure = true)
+  private static boolean isArchive(Message.@NotNull Attachment attachment) {
+    return StructureArchive.isArchive(attachment.getFileName());
+  }
+
+  @Contract(pure = true)
+  private static boolean needsPreprocessing(Message.@NotNull Attachment attachment) {
+    return isArchive(attachment) || JavaStructures.isJavaStructure(attachment.getFileName());
+  }
+
+  @Contract(pure = true)
+  private static @NotNull Identifier toIdentifier(Message.@NotNull Attachment attachment) {
+    return Identifier.fromString(FileUtil.getFilenameWithoutExtension(attachment.getFileName()));
+  }
+
+  @Contract(pure = true)
+  private <T> @NotNull List<@NotNull List<T>> split(
+      @NotNull List<T> items, @NotNull ToLongFunction<? super T> sizeFunction, long maxFileSize) {
+    return isMultipleFiles
+        ? this == BEHAVIOR
+            ? OutputSizeEstimator.split(this, items, sizeFunction, maxFileSize)
+            : List.of(items)
+        : items.stream().<List<T>>map(List::of).toList();
+  }
+
+  @Contract(pure = true)
+  private <T> @NotNull List<@NotNull PackOptions> chooseOptions(
+      @NotNull List<@NotNull List<T>> parts,
+      @NotNull ToLongFunction<? super T> sizeFunction,
+      long maxFileSize) {
+    return parts.stream()
+        .map(
+            part ->
+                OutputSizeEstimator.chooseCompressionLevel(
+                    this, part.stream().mapToLong(sizeFunction).sum(), maxFileSize))
+        .map(
+            level ->
+                PackOptions.builder()
+                    .compressionLevel(level)
+                    .preplaced(this == PREPLACED_WORLD)
+                    .build())
+        .toList();
+  }
+
+  // the returned files are linked into the temp dir by ArtifactCache
+  @CheckReturnValue
+  private @NotNull List<@NotNull Path> generateCached(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options,
+      @Nullable Path previous,
+      @NotNull Path tempDir) {
+    return previous == null
+        ? ArtifactCache.getAll(
+            ArtifactCache.key(this, structures, options),
+            tempDir,
+            () -> ConversionQueue.runCpuBound(() -> generate(structures, options)))
+        : List.of(
+            ArtifactCache.get(
+                ArtifactCache.key(this, structures, options, previous),
+                tempDir,
+                () ->
+                    ConversionQueue.runCpuBound(
+                        () -> patchOrGenerate(previous, structures, options))));
+  }
+
+  // outputs of older versions or broken files cannot be patched, so they are generated again
+  @CheckReturnValue
+  private @NotNull CloseablePath patchOrGenerate(
+      @NotNull Path previous,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
+    try {
+      return PackPatcher.patch(previous, structures, options);
+    } catch (IOException | RuntimeException e) {
+      return generate(structures, options).stream().collect(MoreCollectors.onlyElement());
     }
   }
 
+  @CheckReturnValue
+  private @NotNull List<@NotNull CloseablePath> generate(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
+    return switch (this) {
+      case BEHAVIOR, SINGLE_BEHAVIOR, SINGLE_BEHAVIOR_ADDON ->
+          List.of(Behavior.generate(structures, options));
+      case WORLD, PREPLACED_WORLD -> List.of(World.generate(structures, options));
+      case TEMPLATE -> World.generateWithTemplate(structures, options);
+        /*case STRUCTURA -> throw new UnsupportedOperationException(
+            "Structura is not supported yet");
+        case SLICED_IMAGES -> throw new UnsupportedOperationException(
+            "Sliced images are not supported yet");*/
+    };
+  }
+
+  // whether the file is an output of this type which can be updated by PackPatcher
+  @Contract(pure = true)
+  boolean canPatch(@NotNull String filename) {
+    return switch (this) {
+      case BEHAVIOR -> FileUtil.isExtension(filename, MCExtension.MCPACK.toString());
+      case WORLD -> FileUtil.isExtension(filename, MCExtension.MCWORLD.toString());
+      case SINGLE_BEHAVIOR, SINGLE_BEHAVIOR_ADDON, PREPLACED_WORLD, TEMPLATE -> false;
+    };
+  }
+
+  @Contract(pure = true)
+  private static @NotNull List<@NotNull Long> toIds(
+      @NotNull List<? extends Message.@NotNull Attachment> attachments) {
+    return attachments.stream().map(Message.Attachment::getIdLong).toList();
+  }
+
   @Override
   public @NotNull String toString() {
     return name;
   }
+
+  // previousId is 0 if no previous output is given
+  private record ConvertKey(
+      @NotNull TargetType type,
+      @NotNull List<@NotNull Long> attachmentIds,
+      long previousId,
+      long maxFileSize) {}
+
+  private record MergeKey(
+      @NotNull List<@NotNull Long> packIds,
+      @NotNull List<@NotNull Long> attachmentIds,
+      long maxFileSize) {}
+
+  // the files to be sent, all of which are in the temp dir
+  private record Outputs(@NotNull CloseablePath tempDir, @NotNull List<@NotNull Path> files)
+      implements AutoCloseable {
+
+    // the temp dir is deleted if the generation fails
+    @CheckReturnValue
+    private static @NotNull Outputs generate(
+        @NotNull Function<? super Path, ? extends List<@NotNull Path>> generator) {
+      var tempDir = CloseablePath.of(FileUtil.createTempDir());
+      try {
+        return new Outputs(tempDir, List.copyOf(generator.apply(tempDir.path())));
+      } catch (RuntimeException | Error e) {
+        tempDir.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public void close() {
+      tempDir.close();
+    }
+  }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.gson.reflect.TypeToken;
+import io.github.risu729.erutcurts.DiscordDB;
+import io.github.risu729.erutcurts.util.EmbedUtil;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import lombok.experimental.UtilityClass;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.channel.middleman.MessageChannel;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+// remembers which generated files have been uploaded to which channel
+// to answer duplicates with a link instead of uploading the same file again
+@UtilityClass
+class UploadRegistry {
+
+  private final String DATABASE_NAME = "Uploads";
+  private final Duration RETENTION = Duration.ofDays(30);
+  private final int MAX_ENTRIES = 1000;
+
+  @SuppressWarnings("EmptyClass")
+  @CheckReturnValue
+  private @NotNull List<@NotNull UploadedFile> getUploads() {
+    return DiscordDB.get(
+        DATABASE_NAME,
+        new TypeToken<>() {},
+        list ->
+            list.stream()
+                .filter(UploadedFile::isRecent)
+                .collect(Collectors.toCollection(ArrayList::new)),
+        ArrayList::new);
+  }
+
+  // entries are trusted within the retention without checking the message, as the lookup is on
+  // the path of every conversion, and entries of deleted messages are dropped by remove
+  // the registry is only an optimization, so the file is uploaded again if it cannot be read
+  @CheckReturnValue
+  @NotNull
+  Optional<UploadedFile> find(@NotNull MessageChannel channel, @NotNull String hash) {
+    try {
+      var uploads = getUploads();
+      synchronized (uploads) {
+        return uploads.stream()
+            .filter(UploadedFile::isRecent)
+            .filter(file -> file.channelId().equals(channel.getId()))
+            .filter(file -> file.hash().equals(hash))
+            .findFirst();
+      }
+    } catch (RuntimeException e) {
+      return Optional.empty();
+    }
+  }
+
+  // called when the message is deleted, or when the link to it cannot be sent
+  void remove(@NotNull String channelId, @NotNull Collection<@NotNull String> messageIds) {
+    var uploads = getUploads();
+    synchronized (uploads) {
+      uploads.removeIf(
+          file -> file.channelId().equals(channelId) && messageIds.contains(file.messageId()));
+    }
+  }
+
+  void record(@NotNull Message message, @NotNull Map<@NotNull String, @NotNull String> hashes) {
+    var uploads = getUploads();
+    var channelId = message.getChannel().getId();
+    var now = Instant.now().getEpochSecond();
+    synchronized (uploads) {
+      for (var attachment : message.getAttachments()) {
+        var hash = hashes.get(attachment.getFileName());
+        if (hash == null) {
+          continue;
+        }
+        uploads.removeIf(file -> file.channelId().equals(channelId) && file.hash().equals(hash));
+        uploads.add(
+            new UploadedFile(
+                channelId,
+                hash,
+                message.getId(),
+                message.getJumpUrl(),
+                attachment.getFileName(),
+                now));
+      }
+      if (uploads.size() > MAX_ENTRIES) {
+        var oldest =
+            uploads.stream()
+                .sorted(Comparator.comparingLong(UploadedFile::uploadedAt))
+                .limit(uploads.size() - MAX_ENTRIES)
+                .toList();
+        uploads.removeAll(oldest);
+      }
+    }
+    // put to make sure it is saved even if the database was not loaded yet
+    DiscordDB.put(DATABASE_NAME, uploads);
+  }
+
+  @SuppressWarnings("HardcodedLineSeparator")
+  @Contract(pure = true)
+  @NotNull
+  MessageEmbed createEmbed(@NotNull Collection<? extends @NotNull UploadedFile> files) {
+    checkArgument(!files.isEmpty());
+    return EmbedUtil.createDefaultBuilder("変換結果")
+        .setDescription(
+            "同じファイルが既に送信されています\n"
+                + files.stream()
+                    .map(file -> "[%s](%s)".formatted(file.filename(), file.jumpUrl()))
+                    .collect(Collectors.joining("\n")))
+        .build();
+  }
+
+  // all fields are serialized to the database, keep them primitive or String
+  record UploadedFile(
+      @NotNull String channelId,
+      @NotNull String hash,
+      @NotNull String messageId,
+      @NotNull String jumpUrl,
+      @NotNull String filename,
+      long uploadedAt) {
+
+    @Contract(pure = true)
+    private boolean isRecent() {
+      return Instant.ofEpochSecond(uploadedAt).plus(RETENTION).isAfter(Instant.now());
+    }
+  }
+}
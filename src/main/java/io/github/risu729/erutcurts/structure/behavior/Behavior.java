@@ -10,6 +10,9 @@ package io.github.risu729.erutcurts.structure.behavior;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
 import io.github.risu729.erutcurts.BotInfo;
 import io.github.risu729.erutcurts.Erutcurts;
 import io.github.risu729.erutcurts.structure.MCExtension;
@@ -18,15 +21,18 @@ import io.github.risu729.erutcurts.structure.behavior.manifest.ManifestHeader;
 import io.github.risu729.erutcurts.structure.behavior.manifest.ManifestMetadata;
 import io.github.risu729.erutcurts.structure.behavior.manifest.ManifestModule;
 import io.github.risu729.erutcurts.structure.nbt.Structure;
+import io.github.risu729.erutcurts.util.Uuids;
 import io.github.risu729.erutcurts.util.file.CloseablePath;
 import io.github.risu729.erutcurts.util.file.FileUtil;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.stream.Collectors;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
@@ -44,25 +50,46 @@ import org.semver4j.Semver;
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class Behavior {
 
-  private static final Path MANIFEST_FILENAME = Path.of("manifest.json");
+  static final Path MANIFEST_FILENAME = Path.of("manifest.json");
   private static final Path PACK_ICON_FILENAME = Path.of("pack_icon.png");
-  private static final Path STRUCTURES_DIR_NAME = Path.of("structures");
-  private static final Path METADATA_FILENAME = Path.of("metadata.json");
+  static final Path STRUCTURES_DIR_NAME = Path.of("structures");
+  static final Path METADATA_FILENAME = Path.of("metadata.json");
 
-  private static final Path DEFAULT_PACK_ICON =
+  static final Path DEFAULT_PACK_ICON =
       Erutcurts.RESOURCES_DIR.resolve("default_pack_icon.png");
 
+  // namespace of deterministic UUIDs, must not be changed to keep them stable
+  private static final UUID UUID_NAMESPACE =
+      UUID.fromString("6f3b2c1e-5d0a-4e8b-9c47-2a1f8e6d3b90");
+
   @NotNull String packName;
   @NotNull Path packIcon;
   @NotNull Manifest manifest;
   @NotNull List<@NotNull StructureMetadata> structureMetadata;
   @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures;
 
-  @SuppressWarnings("HardcodedLineSeparator")
   public Behavior(
       @Nullable String packName,
       @Nullable Path packIcon,
       @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures) {
+    this(packName, packIcon, structures, PackOptions.DEFAULT);
+  }
+
+  public Behavior(
+      @Nullable String packName,
+      @Nullable Path packIcon,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options) {
+    this(packName, packIcon, structures, parseMetadata(structures), options);
+  }
+
+  // metadata is given separately so that unchanged structures do not have to be parsed again
+  Behavior(
+      @Nullable String packName,
+      @Nullable Path packIcon,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull List<@NotNull StructureMetadata> structureMetadata,
+      @NotNull PackOptions options) {
 
     checkArgument(!structures.isEmpty(), "structures must not be empty");
 
@@ -70,22 +97,27 @@ public class Behavior {
         packName == null
             ? structures.keySet().stream()
                 .findFirst()
-                .map(Identifier::toStringWithoutDefaultNamespace)
+                .map(Identifier::toFilename)
                 .orElseThrow()
             : packName;
     this.packIcon = packIcon == null ? DEFAULT_PACK_ICON : packIcon;
     this.structures = Map.copyOf(structures);
+    this.structureMetadata = List.copyOf(structureMetadata);
 
-    Map<Identifier, Structure> nbtStructures = new HashMap<>();
-    for (var entry : structures.entrySet()) {
-      nbtStructures.put(entry.getKey(), Structure.fromNbt(entry.getValue()));
-    }
-
-    this.structureMetadata =
-        nbtStructures.entrySet().stream()
-            .map(entry -> new StructureMetadata(entry.getKey(), entry.getValue()))
-            .toList();
+    this.manifest =
+        createManifest(
+            this.packName,
+            this.structureMetadata,
+            options.deterministic() ? hashStructures(structures) : null);
+  }
 
+  // UUIDs are derived from the hash if given, or random otherwise
+  @SuppressWarnings("HardcodedLineSeparator")
+  @CheckReturnValue
+  static @NotNull Manifest createManifest(
+      @NotNull String packName,
+      @NotNull List<@NotNull StructureMetadata> structureMetadata,
+      @Nullable HashCode contentHash) {
     var description =
         "Structures: %s\n*Generated with %s"
             .formatted(
@@ -101,31 +133,75 @@ public class Behavior {
             .max(Comparator.naturalOrder())
             .orElse(ManifestHeader.LOWEST_GAME_VERSION);
 
-    this.manifest =
-        Manifest.builder()
-            .header(
-                ManifestHeader.builder()
-                    .type(ManifestModule.Type.DATA)
-                    .name("Structures: %s".formatted(this.packName))
-                    .description(description)
-                    .minEngineVersion(minEngineVersion)
-                    .build())
-            .module(ManifestModule.builder().type(ManifestModule.Type.DATA).build())
-            .metadata(
-                ManifestMetadata.builder()
-                    .addGeneratedWith(
-                        ManifestMetadata.GeneratedWith.builder()
-                            .name(BotInfo.NAME)
-                            .version(Semver.parse(BotInfo.VERSION))
-                            .build())
-                    .build())
-            .build();
+    var header =
+        ManifestHeader.builder()
+            .type(ManifestModule.Type.DATA)
+            .name("Structures: %s".formatted(packName))
+            .description(description)
+            .minEngineVersion(minEngineVersion);
+    var module = ManifestModule.builder().type(ManifestModule.Type.DATA);
+    if (contentHash != null) {
+      // Minecraft recognizes the same pack by the UUIDs instead of importing it again
+      var name = "%s/%s".formatted(packName, contentHash);
+      header.uuid(Uuids.nameBased(UUID_NAMESPACE, "header/" + name));
+      module.uuid(Uuids.nameBased(UUID_NAMESPACE, "module/" + name));
+    }
+
+    return Manifest.builder()
+        .header(header.build())
+        .module(module.build())
+        .metadata(
+            ManifestMetadata.builder()
+                .addGeneratedWith(
+                    ManifestMetadata.GeneratedWith.builder()
+                        .name(BotInfo.NAME)
+                        .version(Semver.parse(BotInfo.VERSION))
+                        .build())
+                .build())
+        .build();
+  }
+
+  // structures are parsed in parallel and only the metadata is kept to save memory
+  @CheckReturnValue
+  private static @NotNull List<@NotNull StructureMetadata> parseMetadata(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures) {
+    return structures.entrySet().parallelStream()
+        .map(entry -> new StructureMetadata(entry.getKey(), Structure.fromNbt(entry.getValue())))
+        .toList();
+  }
+
+  // hash of the identifiers and the contents of the structures, independent of the order
+  @CheckReturnValue
+  public static @NotNull HashCode hashStructures(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures) {
+    var hasher = Hashing.sha256().newHasher();
+    structures.entrySet().stream()
+        .sorted(Comparator.comparing(entry -> entry.getKey().toString()))
+        .forEachOrdered(
+            entry -> {
+              hasher.putString(entry.getKey().toString(), StandardCharsets.UTF_8);
+              try {
+                hasher.putBytes(
+                    MoreFiles.asByteSource(entry.getValue()).hash(Hashing.sha256()).asBytes());
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+    return hasher.hash();
   }
 
   @CheckReturnValue
   public static @NotNull CloseablePath generate(
       @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures) throws IOException {
-    return generate(null, null, structures);
+    return generate(structures, PackOptions.DEFAULT);
+  }
+
+  @CheckReturnValue
+  public static @NotNull CloseablePath generate(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
+    return generate(null, null, structures, options);
   }
 
   @CheckReturnValue
@@ -134,16 +210,28 @@ public class Behavior {
       @Nullable Path packIcon,
       @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures)
       throws IOException {
+    return generate(packName, packIcon, structures, PackOptions.DEFAULT);
+  }
+
+  @CheckReturnValue
+  public static @NotNull CloseablePath generate(
+      @Nullable String packName,
+      @Nullable Path packIcon,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
     var tempDir = FileUtil.createTempDir();
     try (var closeablePackDir =
-        CloseablePath.of(new Behavior(packName, packIcon, structures).makeDir(tempDir))) {
+        CloseablePath.of(new Behavior(packName, packIcon, structures, options).makeDir(tempDir))) {
       var packDir = closeablePackDir.path();
       return CloseablePath.of(
           FileUtil.zip(
               tempDir.resolve(
                   FileUtil.appendExtension(packDir.getFileName(), MCExtension.MCPACK.toString())),
               packDir,
-              false),
+              false,
+              options.compressionLevel(),
+              options.deterministic()),
           true);
     }
   }
@@ -13,6 +13,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import io.github.risu729.erutcurts.structure.MCExtension;
 import io.github.risu729.erutcurts.util.file.FileUtil;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
 import lombok.AccessLevel;
@@ -66,6 +67,28 @@ public final class Identifier {
     }
   }
 
+  // the inverse of toPath, names which are not plain names are rejected for paths from archives
+  @Contract(pure = true)
+  static @NotNull Identifier fromPath(@NotNull Path path) {
+    List<String> names = new ArrayList<>();
+    path.forEach(name -> names.add(name.toString()));
+    checkArgument(
+        names.stream()
+            .noneMatch(
+                name ->
+                    name.isEmpty()
+                        || name.equals(".")
+                        || name.equals("..")
+                        || name.contains(NAMESPACE_DELIMITER)),
+        "Invalid path: %s",
+        path);
+    names.set(
+        names.size() - 1, FileUtil.getFilenameWithoutExtension(names.get(names.size() - 1)));
+    return names.size() == 1
+        ? new Identifier(null, names)
+        : new Identifier(names.get(0), names.subList(1, names.size()));
+  }
+
   @Contract(pure = true)
   private boolean isDefaultNamespace() {
     return namespace.equals(DEFAULT_NAMESPACE);
@@ -96,6 +119,15 @@ public final class Identifier {
     return String.join(PATH_DELIMITER, path);
   }
 
+  // a single segment for names of files and directories, as the delimiters are not allowed
+  @Contract(pure = true)
+  @NotNull
+  String toFilename() {
+    return toStringWithoutDefaultNamespace()
+        .replace(NAMESPACE_DELIMITER, "_")
+        .replace(PATH_DELIMITER, "_");
+  }
+
   @Override
   public @NotNull String toString() {
     return namespace + NAMESPACE_DELIMITER + String.join(PATH_DELIMITER, path);
@@ -11,6 +11,7 @@ package io.github.risu729.erutcurts.structure.behavior;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.common.hash.HashCode;
 import com.google.gson.reflect.TypeToken;
 import io.github.risu729.erutcurts.DiscordDB;
 import io.github.risu729.erutcurts.misc.DataRequest;
@@ -111,47 +112,33 @@ public class LevelVersions {
                     .worldVersion(flatWorldLayers.worldVersion())
                     .build())
             .build());
+    Levels.rebuildTemplate();
   }
 
+  // hash of level.dat with the current versions, so that cached worlds of older versions are not
+  // reused after update
   @CheckReturnValue
-  @NotNull
-  IntTag generator() {
-    return new IntTag(GENERATOR_KEY, get().generator());
-  }
-
-  @CheckReturnValue
-  @NotNull
-  ListTag<@NotNull IntTag> minimumCompatibleClientVersion() {
-    return new ListTag<>(
-        MINIMUM_COMPATIBLE_CLIENT_VERSION_KEY,
-        TagType.TAG_INT,
-        get().minimumCompatibleClientVersion().stream()
-            .map(value -> new IntTag(null, value))
-            .toList());
-  }
-
-  @CheckReturnValue
-  @NotNull
-  IntTag worldVersion() {
-    return new IntTag(WORLD_VERSION_KEY, get().worldVersion());
-  }
-
-  @CheckReturnValue
-  @NotNull
-  StringTag inventoryVersion() {
-    return new StringTag(INVENTORY_VERSION_KEY, get().inventoryVersion().toString());
-  }
-
-  @CheckReturnValue
-  @NotNull
-  IntTag storageVersion() {
-    return new IntTag(STORAGE_VERSION_KEY, get().storageVersion());
+  public @NotNull HashCode hash() {
+    return Levels.hashTemplate();
   }
 
+  // all version tags from one snapshot of the data
   @CheckReturnValue
   @NotNull
-  IntTag networkVersion() {
-    return new IntTag(NETWORK_VERSION_KEY, get().networkVersion());
+  List<@NotNull Tag> tags() {
+    var data = get();
+    return List.of(
+        new IntTag(GENERATOR_KEY, data.generator()),
+        new ListTag<>(
+            MINIMUM_COMPATIBLE_CLIENT_VERSION_KEY,
+            TagType.TAG_INT,
+            data.minimumCompatibleClientVersion().stream()
+                .map(value -> new IntTag(null, value))
+                .toList()),
+        new IntTag(WORLD_VERSION_KEY, data.worldVersion()),
+        new StringTag(INVENTORY_VERSION_KEY, data.inventoryVersion().toString()),
+        new IntTag(STORAGE_VERSION_KEY, data.storageVersion()),
+        new IntTag(NETWORK_VERSION_KEY, data.networkVersion()));
   }
 
   @CheckReturnValue
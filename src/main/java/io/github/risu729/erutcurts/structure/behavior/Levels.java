@@ -9,19 +9,27 @@
 package io.github.risu729.erutcurts.structure.behavior;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import io.github.risu729.erutcurts.Erutcurts;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.time.OffsetDateTime;
-import java.time.ZoneOffset;
+import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 import lombok.experimental.UtilityClass;
 import nl.itslars.mcpenbt.NBTUtil;
-import nl.itslars.mcpenbt.tags.CompoundTag;
+import nl.itslars.mcpenbt.enums.HeaderType;
 import nl.itslars.mcpenbt.tags.LongTag;
 import nl.itslars.mcpenbt.tags.StringTag;
 import org.jetbrains.annotations.CheckReturnValue;
@@ -33,25 +41,99 @@ import org.jetbrains.annotations.Nullable;
 class Levels {
 
   private final Path TEMPLATE_LEVEL = Erutcurts.RESOURCES_DIR.resolve("template_level.dat");
+  private final String LEVEL_NAME_KEY = "LevelName";
+  private final String LAST_PLAYED_KEY = "LastPlayed";
+  private final byte TAG_LONG_ID = 4;
+  private final byte TAG_STRING_ID = 8;
+  // the header of level.dat is the storage version and the length of the following NBT
+  private final int HEADER_LENGTH_OFFSET = Integer.BYTES;
+
+  // encoded once and patched per world, rebuilt only when LevelVersions is updated
+  private final AtomicReference<@Nullable LevelTemplate> TEMPLATE = new AtomicReference<>();
+
+  // level.dat of a void world, encoded with the header
+  // lastPlayed is null for deterministic worlds, which keep 0 as they have never been played
+  @CheckReturnValue
+  byte @NotNull [] generateLevelDat(@NotNull String levelName, @Nullable Instant lastPlayed) {
+    return template().patch(levelName, lastPlayed);
+  }
 
+  // changes whenever the template is rebuilt with other versions
   @CheckReturnValue
   @NotNull
-  CompoundTag generateLevelDat(
-      @NotNull String levelName, @NotNull FlatWorldLayers flatWorldLayers) {
-    var level = NBTUtil.read(true, TEMPLATE_LEVEL).getAsCompound();
-    // overwrite tags
-    List.of(
-            new StringTag("LevelName", levelName),
-            new StringTag(LevelVersions.FLAT_WORLD_LAYERS_KEY, flatWorldLayers.toJson()),
-            new LongTag("LastPlayed", OffsetDateTime.now(ZoneOffset.UTC).toEpochSecond()),
-            LevelVersions.generator(),
-            LevelVersions.minimumCompatibleClientVersion(),
-            LevelVersions.worldVersion(),
-            LevelVersions.inventoryVersion(),
-            LevelVersions.storageVersion(),
-            LevelVersions.networkVersion())
-        .forEach(tag -> level.change(tag.getName(), tag));
-    return level;
+  HashCode hashTemplate() {
+    return Hashing.sha256().hashBytes(template().bytes());
+  }
+
+  void rebuildTemplate() {
+    TEMPLATE.set(LevelTemplate.create());
+  }
+
+  @CheckReturnValue
+  private @NotNull LevelTemplate template() {
+    return TEMPLATE.updateAndGet(template -> template == null ? LevelTemplate.create() : template);
+  }
+
+  // levelNameOffset is the offset of the length of the level name, which is empty in bytes
+  private record LevelTemplate(byte @NotNull [] bytes, int levelNameOffset, int lastPlayedOffset) {
+
+    @CheckReturnValue
+    private static @NotNull LevelTemplate create() {
+      var level = NBTUtil.read(true, TEMPLATE_LEVEL).getAsCompound();
+      // overwrite tags
+      Stream.concat(
+              Stream.of(
+                  new StringTag(LEVEL_NAME_KEY, ""),
+                  new StringTag(
+                      LevelVersions.FLAT_WORLD_LAYERS_KEY, FlatWorldLayers.newVoid().toJson()),
+                  new LongTag(LAST_PLAYED_KEY, 0L)),
+              LevelVersions.tags().stream())
+          .forEach(tag -> level.change(tag.getName(), tag));
+      var bytes = NBTUtil.write(level, HeaderType.LEVEL_DAT);
+      return new LevelTemplate(
+          bytes,
+          valueOffset(bytes, TAG_STRING_ID, LEVEL_NAME_KEY),
+          valueOffset(bytes, TAG_LONG_ID, LAST_PLAYED_KEY));
+    }
+
+    // offset of the value of the named tag, which is just after the type and the name
+    @Contract(pure = true)
+    private static int valueOffset(byte @NotNull [] bytes, byte type, @NotNull String name) {
+      var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      var pattern =
+          ByteBuffer.allocate(1 + Short.BYTES + nameBytes.length)
+              .order(ByteOrder.LITTLE_ENDIAN)
+              .put(type)
+              .putShort((short) nameBytes.length)
+              .put(nameBytes)
+              .array();
+      var index = Bytes.indexOf(bytes, pattern);
+      checkState(index >= 0, "Tag not found in the template: %s", name);
+      return index + pattern.length;
+    }
+
+    @Contract(pure = true)
+    private byte @NotNull [] patch(@NotNull String levelName, @Nullable Instant lastPlayed) {
+      var name = levelName.getBytes(StandardCharsets.UTF_8);
+      checkArgument(name.length <= 0xffff, "Level name is too long");
+      var result =
+          ByteBuffer.allocate(bytes.length + name.length).order(ByteOrder.LITTLE_ENDIAN);
+      result
+          .put(bytes, 0, levelNameOffset)
+          .putShort((short) name.length)
+          .put(name)
+          .put(
+              bytes,
+              levelNameOffset + Short.BYTES,
+              bytes.length - levelNameOffset - Short.BYTES);
+      result.putInt(HEADER_LENGTH_OFFSET, result.getInt(HEADER_LENGTH_OFFSET) + name.length);
+      if (lastPlayed != null) {
+        result.putLong(
+            lastPlayedOffset + (lastPlayedOffset > levelNameOffset ? name.length : 0),
+            lastPlayed.getEpochSecond());
+      }
+      return result.array();
+    }
   }
 
   record FlatWorldLayers(
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import io.github.risu729.erutcurts.structure.MCExtension;
+import io.github.risu729.erutcurts.structure.nbt.Coordinate;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+// loads structures in batches across ticks, driven by a score which counts ticks
+// the chunks of each batch are kept loaded by ticking areas until the batch is loaded
+record LoadSchedule(
+    @NotNull String name, @NotNull List<@NotNull List<@NotNull StructureMetadata>> batches) {
+
+  static final String OBJECTIVE = "structure_loaded";
+
+  private static final long MAX_VOXELS_PER_TICK = 64 * 64 * 64;
+  // ticking areas need some ticks to load their chunks
+  private static final int TICKS_PER_BATCH = 20;
+  private static final int MAX_TICKING_AREAS = 10;
+  // ticking areas are limited to 100 chunks
+  private static final int MAX_TICKING_AREA_CHUNKS = 10;
+  private static final int CHUNK_SIZE = 16;
+  private static final Path DIR_NAME = Path.of("internal");
+  private static final String TICK_FUNCTION_NAME = "tick";
+
+  LoadSchedule {
+    batches = batches.stream().map(List::copyOf).toList();
+  }
+
+  // structures are loaded in the order of their coordinates to load nearby chunks together
+  // a structure larger than the budget has a batch of its own
+  @CheckReturnValue
+  static @NotNull LoadSchedule plan(
+      @NotNull String name, @NotNull Collection<@NotNull StructureMetadata> structureMetadata) {
+    var sorted =
+        structureMetadata.stream()
+            .sorted(
+                Comparator.comparingInt(
+                        (StructureMetadata metadata) -> checkNotNull(metadata.coordinate()).z())
+                    .thenComparingInt(metadata -> checkNotNull(metadata.coordinate()).x())
+                    .thenComparing(metadata -> metadata.identifier().toString()))
+            .toList();
+    List<List<StructureMetadata>> batches = new ArrayList<>();
+    List<StructureMetadata> batch = new ArrayList<>();
+    var voxels = 0L;
+    var tickingAreas = 0;
+    for (var metadata : sorted) {
+      var structureVoxels = (long) metadata.size().volume();
+      var structureTickingAreas = tickingAreas(metadata).size();
+      if (!batch.isEmpty()
+          && (voxels + structureVoxels > MAX_VOXELS_PER_TICK
+              || tickingAreas + structureTickingAreas > MAX_TICKING_AREAS)) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        voxels = 0;
+        tickingAreas = 0;
+      }
+      batch.add(metadata);
+      voxels += structureVoxels;
+      tickingAreas += structureTickingAreas;
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+    return new LoadSchedule(name, batches);
+  }
+
+  @Contract(pure = true)
+  static @NotNull String loadCommand(@NotNull StructureMetadata metadata) {
+    var coordinate = checkNotNull(metadata.coordinate());
+    return "structure load %s %d %d %d"
+        .formatted(metadata.identifier(), coordinate.x(), coordinate.y(), coordinate.z());
+  }
+
+  // the commands to start loading, the objective may not exist if the first load is skipped
+  // ticking areas of a load in progress are removed, as restarting would add them again and they
+  // are limited in the whole world, removing ones which do not exist just fails
+  @SuppressWarnings("HardcodedLineSeparator")
+  @Contract(pure = true)
+  @NotNull
+  String startCommands() {
+    List<String> commands = new ArrayList<>();
+    commands.add("scoreboard objectives add %s dummy".formatted(OBJECTIVE));
+    IntStream.range(0, batches.size())
+        .mapToObj(this::tickingAreaNames)
+        .flatMap(List::stream)
+        .map("tickingarea remove %s"::formatted)
+        .forEach(commands::add);
+    commands.add(setScore(0));
+    return String.join("\n", commands);
+  }
+
+  // the command to be run every tick, which does nothing unless loading
+  @Contract(pure = true)
+  @NotNull
+  String tickCommand() {
+    return "execute if score %s %s matches 0.. run function %s"
+        .formatted(name, OBJECTIVE, functionName(TICK_FUNCTION_NAME));
+  }
+
+  // paths are relative to the functions directory
+  // step i loads the batch i - 1 and then prepares the batch i
+  @SuppressWarnings("HardcodedLineSeparator")
+  @CheckReturnValue
+  @NotNull
+  @Unmodifiable
+  Map<@NotNull Path, @NotNull String> functions() {
+    Map<Path, String> functions = new LinkedHashMap<>();
+    List<String> tick = new ArrayList<>();
+    tick.add("scoreboard players add %s %s 1".formatted(name, OBJECTIVE));
+    for (int step = 0; step <= batches.size(); step++) {
+      var stepName = Integer.toString(step);
+      tick.add(
+          "execute if score %s %s matches %d run function %s"
+              .formatted(name, OBJECTIVE, 1 + step * TICKS_PER_BATCH, functionName(stepName)));
+
+      List<String> commands = new ArrayList<>();
+      if (step > 0) {
+        var previous = batches.get(step - 1);
+        previous.stream().map(LoadSchedule::loadCommand).forEach(commands::add);
+        tickingAreaNames(step - 1).stream()
+            .map("tickingarea remove %s"::formatted)
+            .forEach(commands::add);
+      }
+      if (step < batches.size()) {
+        var areas =
+            batches.get(step).stream()
+                .flatMap(metadata -> tickingAreas(metadata).stream())
+                .toList();
+        var names = tickingAreaNames(step);
+        for (int i = 0; i < areas.size(); i++) {
+          commands.add("tickingarea add %s %s".formatted(areas.get(i), names.get(i)));
+        }
+      } else {
+        commands.add(setScore(-1));
+      }
+      functions.put(functionPath(stepName), String.join("\n", commands));
+    }
+    functions.put(functionPath(TICK_FUNCTION_NAME), String.join("\n", tick));
+    return Collections.unmodifiableMap(functions);
+  }
+
+  @Contract(pure = true)
+  private @NotNull String setScore(int score) {
+    return "scoreboard players set %s %s %d".formatted(name, OBJECTIVE, score);
+  }
+
+  @Contract(pure = true)
+  private @NotNull Path functionPath(@NotNull String functionName) {
+    return FileUtil.appendExtension(
+        DIR_NAME.resolve(name).resolve(functionName), MCExtension.MCFUNCTION.toString());
+  }
+
+  @Contract(pure = true)
+  private @NotNull String functionName(@NotNull String functionName) {
+    return toFunctionName(functionPath(functionName));
+  }
+
+  // the name used in function commands, which is the path without the extension
+  @Contract(pure = true)
+  static @NotNull String toFunctionName(@NotNull Path path) {
+    var name = FileUtil.toZipEntryName(path);
+    return name.substring(0, name.lastIndexOf('.'));
+  }
+
+  @Contract(pure = true)
+  private @NotNull @Unmodifiable List<@NotNull String> tickingAreaNames(int batch) {
+    var count = batches.get(batch).stream().mapToInt(metadata -> tickingAreas(metadata).size());
+    return IntStream.range(0, count.sum())
+        .mapToObj(i -> "%s_%s_%d_%d".formatted(OBJECTIVE, name, batch, i))
+        .toList();
+  }
+
+  // the footprint of the structure split by chunks into areas small enough for ticking areas
+  // the areas are formatted as the arguments of the tickingarea command
+  @Contract(pure = true)
+  private static @NotNull @Unmodifiable List<@NotNull String> tickingAreas(
+      @NotNull StructureMetadata metadata) {
+    var coordinate = checkNotNull(metadata.coordinate());
+    var size = metadata.size();
+    var minChunkX = Math.floorDiv(coordinate.x(), CHUNK_SIZE);
+    var maxChunkX = Math.floorDiv(coordinate.x() + size.x() - 1, CHUNK_SIZE);
+    var minChunkZ = Math.floorDiv(coordinate.z(), CHUNK_SIZE);
+    var maxChunkZ = Math.floorDiv(coordinate.z() + size.z() - 1, CHUNK_SIZE);
+    List<String> areas = new ArrayList<>();
+    for (int x = minChunkX; x <= maxChunkX; x += MAX_TICKING_AREA_CHUNKS) {
+      for (int z = minChunkZ; z <= maxChunkZ; z += MAX_TICKING_AREA_CHUNKS) {
+        var from = new Coordinate(x * CHUNK_SIZE, coordinate.y(), z * CHUNK_SIZE);
+        var to =
+            new Coordinate(
+                (Math.min(x + MAX_TICKING_AREA_CHUNKS - 1, maxChunkX) + 1) * CHUNK_SIZE - 1,
+                coordinate.y(),
+                (Math.min(z + MAX_TICKING_AREA_CHUNKS - 1, maxChunkZ) + 1) * CHUNK_SIZE - 1);
+        areas.add(
+            Stream.of(from.x(), from.y(), from.z(), to.x(), to.y(), to.z())
+                .map(String::valueOf)
+                .collect(Collectors.joining(" ")));
+      }
+    }
+    return List.copyOf(areas);
+  }
+}
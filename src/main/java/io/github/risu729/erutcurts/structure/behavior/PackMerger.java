@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.MoreFiles;
+import io.github.risu729.erutcurts.structure.MCExtension;
+import io.github.risu729.erutcurts.structure.nbt.Structure;
+import io.github.risu729.erutcurts.util.file.CloseablePath;
+import io.github.risu729.erutcurts.util.file.ExtractionGuard;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import io.github.risu729.erutcurts.util.file.RawZipReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// merges the structures of behavior packs and loose structures into one pack
+// structures in the packs are copied without inflating, unless their metadata is missing
+@UtilityClass
+public class PackMerger {
+
+  private final String MANIFEST_ENTRY_NAME = Behavior.MANIFEST_FILENAME.toString();
+
+  @SuppressWarnings("HardcodedFileSeparator")
+  private final String ZIP_SEPARATOR = "/";
+
+  private final String STRUCTURES_PREFIX = Behavior.STRUCTURES_DIR_NAME + ZIP_SEPARATOR;
+
+  @CheckReturnValue
+  public boolean isMergeable(@NotNull Path path) {
+    return FileUtil.isExtension(
+        path, MCExtension.MCPACK.toString(), MCExtension.MCADDON.toString());
+  }
+
+  // structures with the same contents are merged into the first one
+  // structures with the same identifier but different contents are renamed with a suffix
+  @CheckReturnValue
+  public @NotNull CloseablePath merge(
+      @NotNull List<@NotNull Path> packs,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
+    checkArgument(packs.stream().allMatch(PackMerger::isMergeable), "Not a pack: %s", packs);
+    var tempDir = FileUtil.createTempDir();
+    try (var sources = new Sources(tempDir)) {
+      for (var pack : packs) {
+        sources.addPack(pack, false);
+      }
+      structures.entrySet().stream()
+          .sorted(Comparator.comparing(entry -> entry.getKey().toString()))
+          .forEachOrdered(entry -> sources.addFile(entry.getKey(), entry.getValue()));
+      checkArgument(!sources.merged.isEmpty(), "No structures found");
+
+      List<StructureMetadata> metadata = new ArrayList<>();
+      Map<Identifier, Path> written = new LinkedHashMap<>();
+      Map<String, FileUtil.CopiedEntry> copied = new HashMap<>();
+      var hasher = Hashing.sha256().newHasher();
+      for (var source : sources.merged) {
+        metadata.add(source.metadata(tempDir, sources.guard).withIdentifier(source.identifier()));
+        if (source.file() != null) {
+          written.put(source.identifier(), source.file());
+        } else {
+          copied.put(
+              FileUtil.toZipEntryName(
+                  Behavior.STRUCTURES_DIR_NAME.resolve(source.identifier().toPath())),
+              new FileUtil.CopiedEntry(checkNotNull(source.zip()), checkNotNull(source.entry())));
+        }
+        hasher
+            .putString(source.identifier().toString(), StandardCharsets.UTF_8)
+            .putLong(source.crc())
+            .putLong(source.size());
+      }
+
+      var packName = sources.merged.get(0).identifier().toFilename();
+      var behavior =
+          Behavior.builder()
+              .packName(packName)
+              .packIcon(Behavior.DEFAULT_PACK_ICON)
+              .manifest(
+                  Behavior.createManifest(
+                      packName, metadata, options.deterministic() ? hasher.hash() : null))
+              .structureMetadata(metadata)
+              .structures(written)
+              .build();
+      try (var closeableDir = CloseablePath.of(behavior.makeDir(tempDir))) {
+        var dir = closeableDir.path();
+        return CloseablePath.of(
+            FileUtil.mergeZip(
+                tempDir.resolve(
+                    FileUtil.appendExtension(dir.getFileName(), MCExtension.MCPACK.toString())),
+                dir,
+                copied,
+                options.compressionLevel(),
+                options.deterministic()),
+            true);
+      }
+    }
+  }
+
+  // a structure either from a file or from an entry of a pack
+  private record Source(
+      @NotNull Identifier identifier,
+      @Nullable Path file,
+      @Nullable RawZipReader zip,
+      RawZipReader.@Nullable Entry entry,
+      long crc,
+      long size,
+      @Nullable StructureMetadata metadata) {
+
+    @Contract(pure = true)
+    private @NotNull Source withIdentifier(@NotNull Identifier identifier) {
+      return new Source(identifier, file, zip, entry, crc, size, metadata);
+    }
+
+    @CheckReturnValue
+    private @NotNull StructureMetadata metadata(
+        @NotNull Path tempDir, @NotNull ExtractionGuard guard) throws IOException {
+      if (metadata != null) {
+        return metadata.withCoordinate(null);
+      }
+      // packs not generated by this bot have no metadata, so the structure has to be parsed
+      return withFile(
+          tempDir, guard, path -> new StructureMetadata(identifier, Structure.fromNbt(path)));
+    }
+
+    // entries of packs are extracted to a temp file, which is deleted after the action
+    private <T> T withFile(
+        @NotNull Path tempDir, @NotNull ExtractionGuard guard, @NotNull FileAction<T> action)
+        throws IOException {
+      if (file != null) {
+        return action.apply(file);
+      }
+      var extracted = Files.createTempFile(tempDir, null, null);
+      try {
+        checkNotNull(zip).extract(checkNotNull(entry), extracted, guard);
+        return action.apply(extracted);
+      } finally {
+        FileUtil.deleteQuietly(extracted);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface FileAction<T> {
+
+    T apply(@NotNull Path path) throws IOException;
+  }
+
+  // keeps the readers open until the merged pack is written
+  private static final class Sources implements Closeable {
+
+    private final Path tempDir;
+    private final List<RawZipReader> readers = new ArrayList<>();
+    private final List<Source> merged = new ArrayList<>();
+    private final Set<Identifier> identifiers = new HashSet<>();
+    // uploaded packs are limited in total, and nested packs count as extracted data
+    private final ExtractionGuard guard = new ExtractionGuard(() -> this.compressedSize);
+    private long compressedSize;
+
+    private Sources(@NotNull Path tempDir) {
+      this.tempDir = tempDir;
+    }
+
+    // packs are found by manifest.json next to the structures directory, at any depth
+    // packs in an .mcaddon may also be nested .mcpack files
+    private void addPack(@NotNull Path pack, boolean nested) throws IOException {
+      var zip = RawZipReader.open(pack);
+      readers.add(zip);
+      if (!nested) {
+        compressedSize += Files.size(pack);
+      }
+      guard.addEntries(zip.entries().size());
+      var roots =
+          zip.entries().keySet().stream()
+              .filter(
+                  name ->
+                      name.equals(MANIFEST_ENTRY_NAME)
+                          || name.endsWith(ZIP_SEPARATOR + MANIFEST_ENTRY_NAME))
+              .map(name -> name.substring(0, name.length() - MANIFEST_ENTRY_NAME.length()))
+              .sorted(Comparator.comparingInt(String::length).reversed())
+              .toList();
+      Map<String, Map<Identifier, StructureMetadata>> metadata = new HashMap<>();
+      for (var root : roots) {
+        metadata.put(root, readMetadata(zip, root));
+      }
+      for (var entry : zip.entries().values()) {
+        var name = entry.name();
+        if (FileUtil.isExtension(name, MCExtension.MCPACK.toString())
+            && FileUtil.isExtension(pack, MCExtension.MCADDON.toString())) {
+          var nestedPack = Files.createTempFile(tempDir, null, "." + MCExtension.MCPACK);
+          zip.extract(entry, nestedPack, guard);
+          addPack(nestedPack, true);
+          continue;
+        }
+        if (!FileUtil.isExtension(name, MCExtension.MCSTRUCTURE.toString())) {
+          continue;
+        }
+        for (var root : roots) {
+          if (name.startsWith(root + STRUCTURES_PREFIX)) {
+            var relativePath =
+                FileUtil.fromZipEntryName(name.substring((root + STRUCTURES_PREFIX).length()));
+            Identifier identifier;
+            try {
+              identifier = Identifier.fromPath(relativePath);
+            } catch (IllegalArgumentException e) {
+              break;
+            }
+            add(
+                new Source(
+                    identifier,
+                    null,
+                    zip,
+                    entry,
+                    entry.crc(),
+                    entry.size(),
+                    metadata.get(root).get(identifier)));
+            break;
+          }
+        }
+      }
+    }
+
+    private void addFile(@NotNull Identifier identifier, @NotNull Path file) {
+      try {
+        var bytes = Files.readAllBytes(file);
+        var crc32 = new CRC32();
+        crc32.update(bytes);
+        add(new Source(identifier, file, null, null, crc32.getValue(), bytes.length, null));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    // CRC-32 and the size are compared first, so only probable duplicates are read
+    // the contents are compared as streams of the extracted files, not in memory
+    private void add(@NotNull Source source) throws IOException {
+      for (var existing : merged) {
+        if (existing.crc() == source.crc()
+            && existing.size() == source.size()
+            && existing.withFile(
+                tempDir,
+                guard,
+                existingPath ->
+                    source.withFile(
+                        tempDir,
+                        guard,
+                        path ->
+                            MoreFiles.asByteSource(existingPath)
+                                .contentEquals(MoreFiles.asByteSource(path))))) {
+          return;
+        }
+      }
+      var identifier = source.identifier();
+      for (int i = 2; !identifiers.add(identifier); i++) {
+        identifier = Identifier.fromString(source.identifier() + "_" + i);
+      }
+      merged.add(source.withIdentifier(identifier));
+    }
+
+    // metadata.json is written only by this bot, it is absent in other packs
+    @CheckReturnValue
+    private @NotNull Map<@NotNull Identifier, @NotNull StructureMetadata> readMetadata(
+        @NotNull RawZipReader zip, @NotNull String root) throws IOException {
+      var metadataName = root + Behavior.METADATA_FILENAME;
+      var entry = zip.entry(metadataName);
+      if (entry.isEmpty()) {
+        return Map.of();
+      }
+      var json = new String(zip.read(entry.orElseThrow(), guard), StandardCharsets.UTF_8);
+      return StructureMetadata.fromJson(json).stream()
+          .collect(
+              Collectors.toUnmodifiableMap(
+                  StructureMetadata::identifier, Function.identity(), (a, b) -> a));
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (var reader : readers) {
+        reader.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import lombok.Builder;
+import lombok.With;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import org.jetbrains.annotations.NotNull;
+
+// options which change the generated file but not the structures in it
+@Builder(toBuilder = true)
+@With
+public record PackOptions(
+    @NotNull CompressionLevel compressionLevel,
+    // derive UUIDs from the contents and fix timestamps, so the same input makes the same file
+    boolean deterministic,
+    // write blocks of worlds into the db instead of loading structures on the first tick
+    boolean preplaced) {
+
+  public static final PackOptions DEFAULT = builder().build();
+
+  // to set default values
+  @SuppressWarnings({"FieldMayBeFinal", "unused"})
+  public static final class PackOptionsBuilder {
+
+    private CompressionLevel compressionLevel = CompressionLevel.NORMAL;
+    private boolean deterministic = true;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.MoreCollectors;
+import io.github.risu729.erutcurts.structure.MCExtension;
+import io.github.risu729.erutcurts.structure.behavior.manifest.Manifest;
+import io.github.risu729.erutcurts.structure.nbt.Structure;
+import io.github.risu729.erutcurts.util.file.CloseablePath;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import io.github.risu729.erutcurts.util.file.RawZipReader;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.NotNull;
+
+// updates a previously generated pack or world instead of generating it again
+// unchanged structures are neither parsed nor compressed again, the other files are regenerated
+@UtilityClass
+public class PackPatcher {
+
+  @SuppressWarnings("HardcodedFileSeparator")
+  private final Pattern WORLD_MANIFEST_PATTERN =
+      Pattern.compile(
+          Pattern.quote(World.BEHAVIOR_PACKS_DIR_NAME + "/")
+              + "([^/]+)/"
+              + Pattern.quote(Behavior.MANIFEST_FILENAME.toString()));
+
+  @CheckReturnValue
+  public boolean isPatchable(@NotNull Path path) {
+    return FileUtil.isExtension(
+        path, MCExtension.MCPACK.toString(), MCExtension.MCWORLD.toString());
+  }
+
+  // the header and module UUIDs are kept and the version is bumped
+  // so that Minecraft recognizes the result as an update of the previous pack
+  @CheckReturnValue
+  public @NotNull CloseablePath patch(
+      @NotNull Path previous,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
+    checkArgument(isPatchable(previous), "Not a pack or a world: %s", previous);
+    checkArgument(!structures.isEmpty(), "structures must not be empty");
+    var isWorld = FileUtil.isExtension(previous, MCExtension.MCWORLD.toString());
+    var name = FileUtil.getFilenameWithoutExtension(previous.getFileName().toString());
+
+    var tempDir = FileUtil.createTempDir();
+    try (var zip = RawZipReader.open(previous)) {
+      String packName;
+      String prefix;
+      if (isWorld) {
+        packName =
+            zip.entries().keySet().stream()
+                .map(WORLD_MANIFEST_PATTERN::matcher)
+                .filter(Matcher::matches)
+                .map(matcher -> matcher.group(1))
+                .collect(MoreCollectors.onlyElement());
+        prefix = FileUtil.toZipEntryName(World.BEHAVIOR_PACKS_DIR_NAME.resolve(packName)) + "/";
+      } else {
+        packName = name;
+        prefix = "";
+      }
+
+      var previousManifest =
+          Manifest.fromJson(zip.readString(prefix + Behavior.MANIFEST_FILENAME));
+      Map<Identifier, StructureMetadata> previousMetadata =
+          StructureMetadata.fromJson(zip.readString(prefix + Behavior.METADATA_FILENAME)).stream()
+              .collect(
+                  Collectors.toUnmodifiableMap(StructureMetadata::identifier, Function.identity()));
+
+      Map<Identifier, Path> changed = new HashMap<>();
+      List<StructureMetadata> metadata = new ArrayList<>();
+      Set<String> retained = new HashSet<>();
+      for (var entry : structures.entrySet()) {
+        var entryName =
+            prefix
+                + FileUtil.toZipEntryName(
+                    Behavior.STRUCTURES_DIR_NAME.resolve(entry.getKey().toPath()));
+        var zipEntry = zip.entry(entryName);
+        var structureMetadata = previousMetadata.get(entry.getKey());
+        if (structureMetadata != null
+            && zipEntry.isPresent()
+            && zipEntry.orElseThrow().hasSameContents(entry.getValue())) {
+          retained.add(entryName);
+          metadata.add(structureMetadata.withCoordinate(null));
+        } else {
+          changed.put(entry.getKey(), entry.getValue());
+          metadata.add(
+              new StructureMetadata(entry.getKey(), Structure.fromNbt(entry.getValue())));
+        }
+      }
+
+      // generated with all structures for the description, but only changed ones are written
+      var generated = new Behavior(packName, null, structures, metadata, options);
+      var manifest = generated.manifest();
+      var previousHeader = previousManifest.header();
+      var behavior =
+          Behavior.builder()
+              .packName(generated.packName())
+              .packIcon(generated.packIcon())
+              .manifest(
+                  manifest
+                      .withHeader(
+                          manifest
+                              .header()
+                              .withUuid(previousHeader.uuid())
+                              .withVersion(previousHeader.version().withIncPatch()))
+                      .withModules(
+                          manifest.modules().stream()
+                              .map(
+                                  module ->
+                                      module.withUuid(
+                                          previousManifest.modules().get(0).uuid()))
+                              .toList()))
+              .structureMetadata(generated.structureMetadata())
+              .structures(changed)
+              .build();
+
+      var dir =
+          isWorld
+              ? new World(name, null, behavior, options).makeDir(tempDir)
+              : behavior.makeDir(tempDir);
+      try (var closeableDir = CloseablePath.of(dir)) {
+        return CloseablePath.of(
+            FileUtil.patchZip(
+                zip,
+                tempDir.resolve(previous.getFileName()),
+                closeableDir.path(),
+                retained,
+                options.compressionLevel(),
+                options.deterministic()),
+            true);
+      }
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.primitives.Ints;
+import io.github.risu729.erutcurts.structure.nbt.Block;
+import io.github.risu729.erutcurts.structure.nbt.BlockUpgrader;
+import io.github.risu729.erutcurts.structure.nbt.Coordinate;
+import io.github.risu729.erutcurts.structure.nbt.Structure;
+import io.github.risu729.erutcurts.util.leveldb.LevelDbWriter;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import lombok.experimental.UtilityClass;
+import nl.itslars.mcpenbt.NBTUtil;
+import nl.itslars.mcpenbt.enums.HeaderType;
+import nl.itslars.mcpenbt.tags.CompoundTag;
+import nl.itslars.mcpenbt.tags.IntTag;
+import nl.itslars.mcpenbt.tags.StringTag;
+import nl.itslars.mcpenbt.tags.Tag;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// encodes the blocks of structures as chunks of the overworld, keyed as in the world's db
+// based on "Bedrock Edition level format" on the Minecraft Wiki
+@UtilityClass
+class PreplacedChunks {
+
+  private final int SUB_CHUNK_SIZE = 16;
+  private final int SUB_CHUNK_VOLUME = SUB_CHUNK_SIZE * SUB_CHUNK_SIZE * SUB_CHUNK_SIZE;
+  private final int MIN_Y = -64;
+  private final int MAX_Y = 319;
+
+  private final byte TAG_VERSION = 44;
+  private final byte TAG_SUB_CHUNK_PREFIX = 47;
+  private final byte TAG_BLOCK_ENTITY = 49;
+  private final byte TAG_FINALIZED_STATE = 54;
+  private final byte CHUNK_VERSION = 40;
+  private final byte SUB_CHUNK_VERSION = 9;
+  // the chunk is generated and the generator must not overwrite it
+  private final int FINALIZED = 2;
+  private final int[] BITS_PER_BLOCK = {1, 2, 3, 4, 5, 6, 8, 16};
+
+  private final String AIR = "minecraft:air";
+
+  // structures with entities cannot be placed as blocks only, they are loaded by commands instead
+  @Contract(pure = true)
+  boolean canPreplace(@NotNull Structure structure, @NotNull Coordinate origin) {
+    return structure.entities().isEmpty()
+        && origin.y() >= MIN_Y
+        && origin.y() + structure.size().y() - 1 <= MAX_Y;
+  }
+
+  // structures are keyed by the coordinate of their lowest corner in the world
+  // each chunk is encoded in parallel
+  @CheckReturnValue
+  @NotNull
+  SortedMap<byte[], byte[]> encode(
+      @NotNull Map<@NotNull Coordinate, @NotNull Structure> structures) {
+    Map<ChunkPosition, ChunkBlocks> chunks = new HashMap<>();
+    structures.forEach(
+        (origin, structure) -> {
+          checkArgument(canPreplace(structure, origin), "The structure cannot be preplaced");
+          structure
+              .blockIndices()
+              .forEach(
+                  (coordinate, layers) -> {
+                    if (layers.isVoid()) {
+                      return;
+                    }
+                    var x = origin.x() + coordinate.x();
+                    var y = origin.y() + coordinate.y();
+                    var z = origin.z() + coordinate.z();
+                    chunks
+                        .computeIfAbsent(
+                            new ChunkPosition(
+                                Math.floorDiv(x, SUB_CHUNK_SIZE),
+                                Math.floorDiv(z, SUB_CHUNK_SIZE)),
+                            position -> new ChunkBlocks())
+                        .set(x, y, z, layers.primary(), layers.secondary());
+                  });
+        });
+
+    SortedMap<byte[], byte[]> entries = new ConcurrentSkipListMap<>(LevelDbWriter.KEY_COMPARATOR);
+    chunks.entrySet().parallelStream()
+        .forEach(entry -> entries.putAll(encodeChunk(entry.getKey(), entry.getValue())));
+    // the writer requires the exact comparator, which ConcurrentSkipListMap keeps
+    return entries;
+  }
+
+  @CheckReturnValue
+  private @NotNull Map<byte[], byte[]> encodeChunk(
+      @NotNull ChunkPosition position, @NotNull ChunkBlocks blocks) {
+    Map<byte[], byte[]> entries = new TreeMap<>(LevelDbWriter.KEY_COMPARATOR);
+    entries.put(position.key(TAG_VERSION), new byte[] {CHUNK_VERSION});
+    entries.put(
+        position.key(TAG_FINALIZED_STATE), littleEndian(Integer.BYTES).putInt(FINALIZED).array());
+    blocks.subChunks.forEach(
+        (index, layers) ->
+            entries.put(
+                position.key(TAG_SUB_CHUNK_PREFIX, index), encodeSubChunk(index, layers)));
+
+    var blockEntities = new ByteArrayOutputStream();
+    blocks.blockEntities.forEach(
+        tag -> blockEntities.writeBytes(NBTUtil.write(tag, HeaderType.NONE)));
+    if (blockEntities.size() > 0) {
+      entries.put(position.key(TAG_BLOCK_ENTITY), blockEntities.toByteArray());
+    }
+    return entries;
+  }
+
+  @CheckReturnValue
+  private byte @NotNull [] encodeSubChunk(
+      byte index, @Nullable Block @NotNull [] @NotNull [] layers) {
+    // the secondary layer, such as water of waterlogged blocks, is omitted if no block has it
+    var storageCount = Stream.of(layers[1]).anyMatch(Objects::nonNull) ? 2 : 1;
+    var airVersion =
+        Stream.of(layers)
+            .flatMap(Stream::of)
+            .filter(Objects::nonNull)
+            .findFirst()
+            .map(Block::version)
+            .orElseThrow();
+    var output = new ByteArrayOutputStream();
+    output.write(SUB_CHUNK_VERSION);
+    output.write(storageCount);
+    output.write(index);
+    for (int i = 0; i < storageCount; i++) {
+      writeStorage(output, layers[i], airVersion);
+    }
+    return output.toByteArray();
+  }
+
+  private void writeStorage(
+      @NotNull ByteArrayOutputStream output,
+      @Nullable Block @NotNull [] blocks,
+      @NotNull String airVersion) {
+    // blocks are compared by the encoded NBT because CompoundTag does not implement equals
+    // blocks saved by old versions are upgraded here, once per distinct palette entry
+    Map<Block, ByteBuffer> encoded = new IdentityHashMap<>();
+    Map<ByteBuffer, Integer> palette = new HashMap<>();
+    List<byte[]> paletteEntries = new ArrayList<>();
+    var air = encodePaletteEntry(AIR, new CompoundTag("states", List.of()), airVersion);
+    palette.put(ByteBuffer.wrap(air), 0);
+    paletteEntries.add(air);
+
+    var indices = new int[SUB_CHUNK_VOLUME];
+    for (int i = 0; i < SUB_CHUNK_VOLUME; i++) {
+      var block = blocks[i];
+      if (block == null) {
+        continue;
+      }
+      var entry =
+          encoded.computeIfAbsent(
+              block,
+              b -> {
+                var upgraded = BlockUpgrader.upgrade(b);
+                return ByteBuffer.wrap(
+                    encodePaletteEntry(upgraded.name(), upgraded.states(), upgraded.version()));
+              });
+      indices[i] =
+          palette.computeIfAbsent(
+              entry,
+              e -> {
+                paletteEntries.add(e.array());
+                return paletteEntries.size() - 1;
+              });
+    }
+
+    var bitsPerBlock = 0;
+    for (var bits : BITS_PER_BLOCK) {
+      if (1 << bits >= paletteEntries.size()) {
+        bitsPerBlock = bits;
+        break;
+      }
+    }
+    checkArgument(bitsPerBlock > 0, "Too many kinds of blocks in a sub chunk");
+    var blocksPerWord = Integer.SIZE / bitsPerBlock;
+    var words = new int[Math.ceilDiv(SUB_CHUNK_VOLUME, blocksPerWord)];
+    for (int i = 0; i < SUB_CHUNK_VOLUME; i++) {
+      words[i / blocksPerWord] |= indices[i] << (i % blocksPerWord * bitsPerBlock);
+    }
+
+    // the lowest bit is whether runtime IDs are used instead of NBT, which is false in storage
+    output.write(bitsPerBlock << 1);
+    var buffer = littleEndian(words.length * Integer.BYTES + Integer.BYTES);
+    for (var word : words) {
+      buffer.putInt(word);
+    }
+    buffer.putInt(paletteEntries.size());
+    output.writeBytes(buffer.array());
+    paletteEntries.forEach(output::writeBytes);
+  }
+
+  @CheckReturnValue
+  private byte @NotNull [] encodePaletteEntry(
+      @NotNull String name, @NotNull CompoundTag states, @NotNull String version) {
+    var versionBytes = Stream.of(version.split("\\.")).mapToInt(Integer::parseInt).toArray();
+    return NBTUtil.write(
+        new CompoundTag(
+            "",
+            List.of(
+                new StringTag("name", name),
+                new CompoundTag("states", states.getElements()),
+                new IntTag(
+                    "version",
+                    Ints.fromBytes(
+                        (byte) versionBytes[0],
+                        (byte) versionBytes[1],
+                        (byte) versionBytes[2],
+                        (byte) versionBytes[3])))),
+        HeaderType.NONE);
+  }
+
+  @Contract(pure = true)
+  private @NotNull ByteBuffer littleEndian(int capacity) {
+    return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private record ChunkPosition(int x, int z) {
+
+    @Contract(pure = true)
+    private byte @NotNull [] key(byte tag) {
+      return littleEndian(Integer.BYTES * 2 + 1).putInt(x).putInt(z).put(tag).array();
+    }
+
+    @Contract(pure = true)
+    private byte @NotNull [] key(byte tag, byte subChunkIndex) {
+      return littleEndian(Integer.BYTES * 2 + 2)
+          .putInt(x)
+          .putInt(z)
+          .put(tag)
+          .put(subChunkIndex)
+          .array();
+    }
+  }
+
+  // blocks of each sub chunk in XZY order, the primary layer and then the secondary layer
+  private static final class ChunkBlocks {
+
+    private final Map<Byte, Block[][]> subChunks = new TreeMap<>();
+    private final List<CompoundTag> blockEntities = new ArrayList<>();
+
+    private void set(int x, int y, int z, @Nullable Block primary, @Nullable Block secondary) {
+      var layers =
+          subChunks.computeIfAbsent(
+              (byte) Math.floorDiv(y, SUB_CHUNK_SIZE),
+              index -> new Block[][] {new Block[SUB_CHUNK_VOLUME], new Block[SUB_CHUNK_VOLUME]});
+      var index =
+          Math.floorMod(x, SUB_CHUNK_SIZE) << 8
+              | Math.floorMod(z, SUB_CHUNK_SIZE) << 4
+              | Math.floorMod(y, SUB_CHUNK_SIZE);
+      layers[0][index] = primary;
+      layers[1][index] = secondary;
+      if (primary != null && primary.blockEntityData() != null) {
+        blockEntities.add(moveBlockEntity(primary.blockEntityData(), x, y, z));
+      }
+    }
+
+    // block entities have absolute coordinates, which are relative in structures
+    @CheckReturnValue
+    private static @NotNull CompoundTag moveBlockEntity(
+        @NotNull CompoundTag blockEntity, int x, int y, int z) {
+      var moved =
+          new CompoundTag(blockEntity.getName(), new ArrayList<Tag>(blockEntity.getElements()));
+      moved.change("x", new IntTag("x", x));
+      moved.change("y", new IntTag("y", y));
+      moved.change("z", new IntTag("z", z));
+      return moved;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import io.github.risu729.erutcurts.structure.nbt.Coordinate;
+import io.github.risu729.erutcurts.structure.nbt.Size;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+// packs footprints of structures on the xz plane with the skyline bottom-left heuristic
+// structures are placed to touch as few chunks as possible, and then as low as possible
+@UtilityClass
+class SkylineLayout {
+
+  private final int CHUNK_SIZE = 16;
+
+  // the order of structures is kept, the layout is centered on the origin at a chunk boundary
+  @CheckReturnValue
+  @NotNull
+  @Unmodifiable
+  List<@NotNull StructureMetadata> arrange(
+      @NotNull List<@NotNull StructureMetadata> structureMetadata, int gap, int y) {
+    checkArgument(!structureMetadata.isEmpty());
+    checkArgument(gap >= 0);
+
+    // largest ones first, and the identifier to be deterministic
+    var sorted =
+        structureMetadata.stream()
+            .sorted(
+                Comparator.<StructureMetadata>comparingInt(
+                        metadata -> Math.max(metadata.size().x(), metadata.size().z()))
+                    .thenComparingInt(metadata -> metadata.size().x() * metadata.size().z())
+                    .reversed()
+                    .thenComparing(metadata -> metadata.identifier().toString()))
+            .toList();
+
+    var area =
+        sorted.stream()
+            .mapToLong(
+                metadata -> (long) (metadata.size().x() + gap) * (metadata.size().z() + gap))
+            .sum();
+    var maxWidth =
+        sorted.stream().mapToInt(metadata -> metadata.size().x() + gap).max().orElseThrow();
+    var width = Math.max(maxWidth, roundUpToChunk((int) Math.ceil(Math.sqrt(area))));
+
+    var skyline = new Skyline(width);
+    Map<StructureMetadata, Coordinate> positions = new IdentityHashMap<>();
+    for (var metadata : sorted) {
+      positions.put(metadata, skyline.place(metadata.size(), gap));
+    }
+
+    var offsetX = -Math.floorDiv(width / 2, CHUNK_SIZE) * CHUNK_SIZE;
+    var offsetZ = -Math.floorDiv(skyline.maxHeight() / 2, CHUNK_SIZE) * CHUNK_SIZE;
+    return structureMetadata.stream()
+        .map(
+            metadata -> {
+              var position = positions.get(metadata);
+              return metadata.withCoordinate(
+                  new Coordinate(position.x() + offsetX, y, position.z() + offsetZ));
+            })
+        .toList();
+  }
+
+  private int roundUpToChunk(int value) {
+    return Math.ceilDiv(value, CHUNK_SIZE) * CHUNK_SIZE;
+  }
+
+  private int touchedChunks(int start, int length) {
+    return Math.floorDiv(start + length - 1, CHUNK_SIZE) - Math.floorDiv(start, CHUNK_SIZE) + 1;
+  }
+
+  // heights of the placed structures along x, as segments sorted by x
+  private static final class Skyline {
+
+    private final int width;
+    private final List<Segment> segments = new ArrayList<>();
+
+    private Skyline(int width) {
+      this.width = width;
+      segments.add(new Segment(0, width, 0));
+    }
+
+    // returns the position of the lowest corner of the structure, the gap is added after it
+    private @NotNull Coordinate place(@NotNull Size size, int gap) {
+      var footprintX = size.x() + gap;
+      var footprintZ = size.z() + gap;
+      Placement best = null;
+      for (var segment : segments) {
+        for (var x : new int[] {segment.x(), roundUpToChunk(segment.x())}) {
+          if (x + footprintX > width) {
+            continue;
+          }
+          var base = heightAt(x, footprintX);
+          for (var z : new int[] {base, roundUpToChunk(base)}) {
+            var placement =
+                new Placement(
+                    x, z, touchedChunks(x, size.x()) * touchedChunks(z, size.z()), z + footprintZ);
+            if (best == null || placement.isBetterThan(best)) {
+              best = placement;
+            }
+          }
+        }
+      }
+      // the width is at least the largest footprint, so x = 0 always fits
+      checkNotNull(best);
+      raise(best.x(), footprintX, best.top());
+      return new Coordinate(best.x(), 0, best.z());
+    }
+
+    private int heightAt(int x, int length) {
+      return segments.stream()
+          .filter(segment -> segment.x() < x + length && x < segment.end())
+          .mapToInt(Segment::height)
+          .max()
+          .orElseThrow();
+    }
+
+    private int maxHeight() {
+      return segments.stream().mapToInt(Segment::height).max().orElseThrow();
+    }
+
+    private void raise(int x, int length, int height) {
+      var end = x + length;
+      List<Segment> updated = new ArrayList<>();
+      for (var segment : segments) {
+        if (segment.end() <= x || end <= segment.x()) {
+          updated.add(segment);
+          continue;
+        }
+        // keep the parts outside of the raised range
+        if (segment.x() < x) {
+          updated.add(new Segment(segment.x(), x - segment.x(), segment.height()));
+        }
+        if (segment.x() <= x) {
+          updated.add(new Segment(x, length, height));
+        }
+        if (end < segment.end()) {
+          updated.add(new Segment(end, segment.end() - end, segment.height()));
+        }
+      }
+      // merge neighbors of the same height to keep the number of candidates small
+      segments.clear();
+      for (var segment : updated) {
+        var last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.height() == segment.height() && last.end() == segment.x()) {
+          segments.set(
+              segments.size() - 1,
+              new Segment(last.x(), last.width() + segment.width(), last.height()));
+        } else {
+          segments.add(segment);
+        }
+      }
+    }
+  }
+
+  private record Segment(int x, int width, int height) {
+
+    private int end() {
+      return x + width;
+    }
+  }
+
+  private record Placement(int x, int z, int chunks, int top) {
+
+    private boolean isBetterThan(@NotNull Placement other) {
+      return IntStream.of(chunks - other.chunks, top - other.top, x - other.x)
+              .filter(difference -> difference != 0)
+              .findFirst()
+              .orElse(0)
+          < 0;
+    }
+  }
+}
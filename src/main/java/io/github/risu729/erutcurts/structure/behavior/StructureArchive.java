@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.io.CountingInputStream;
+import io.github.risu729.erutcurts.structure.MCExtension;
+import io.github.risu729.erutcurts.util.file.ExtractionGuard;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Unmodifiable;
+
+// reads .mcstructure files from a zip archive, the directories are mapped to the identifiers
+// e.g. "namespace/dir/name.mcstructure" is "namespace:dir/name"
+@UtilityClass
+public class StructureArchive {
+
+  public final String EXTENSION = "zip";
+
+  @SuppressWarnings("HardcodedFileSeparator")
+  private final String ZIP_SEPARATOR = "/";
+
+  // metadata of macOS, which is added by Finder
+  private final String MACOS_METADATA_DIR_NAME = "__MACOSX";
+
+  @Contract(pure = true)
+  public boolean isArchive(@NotNull String filename) {
+    return FileUtil.isExtension(filename, EXTENSION);
+  }
+
+  // the archive is read as a stream without the central directory, whose sizes can be forged
+  // other entries are read through to keep the guards against zip bombs
+  @CheckReturnValue
+  public @NotNull @Unmodifiable Map<@NotNull Identifier, @NotNull Path> extract(
+      @NotNull Path archive, @NotNull Path dir) throws IOException {
+    var root = dir.toAbsolutePath().normalize();
+    Map<Identifier, Path> structures = new LinkedHashMap<>();
+    try (var counting =
+            new CountingInputStream(new BufferedInputStream(Files.newInputStream(archive)));
+        var zip = new ZipInputStream(counting)) {
+      var guard = new ExtractionGuard(counting::getCount);
+      for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        guard.addEntries(1);
+        var identifier = toIdentifier(entry);
+        if (identifier == null) {
+          guard.copy(zip, OutputStream.nullOutputStream());
+          continue;
+        }
+        checkArgument(!structures.containsKey(identifier), "Duplicate structure: %s", identifier);
+        var path = root.resolve(identifier.toPath()).normalize();
+        checkArgument(path.startsWith(root), "Invalid entry: %s", entry.getName());
+        Files.createDirectories(path.getParent());
+        try (var output = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW)) {
+          guard.copy(zip, output);
+        }
+        structures.put(identifier, path);
+      }
+    }
+    checkArgument(!structures.isEmpty(), "No structures found in the archive");
+    return Collections.unmodifiableMap(structures);
+  }
+
+  // hidden files and directories, and files which are not valid identifiers are skipped
+  @Contract(pure = true)
+  private @Nullable Identifier toIdentifier(@NotNull ZipEntry entry) {
+    var name = entry.getName();
+    if (entry.isDirectory()
+        || !FileUtil.isExtension(name, MCExtension.MCSTRUCTURE.toString())
+        || Arrays.stream(name.split(ZIP_SEPARATOR))
+            .anyMatch(part -> part.startsWith(".") || part.equals(MACOS_METADATA_DIR_NAME))) {
+      return null;
+    }
+    try {
+      return Identifier.fromPath(FileUtil.fromZipEntryName(name));
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+}
@@ -11,6 +11,7 @@ package io.github.risu729.erutcurts.structure.behavior;
 import com.google.gson.FieldNamingPolicy;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
 import io.github.risu729.erutcurts.structure.nbt.Coordinate;
 import io.github.risu729.erutcurts.structure.nbt.Size;
 import io.github.risu729.erutcurts.structure.nbt.Structure;
@@ -43,4 +44,9 @@ record StructureMetadata(
   static @NotNull String toJson(@NotNull List<@NotNull StructureMetadata> src) {
     return GSON.toJson(src);
   }
+
+  @SuppressWarnings("EmptyClass")
+  static @NotNull List<@NotNull StructureMetadata> fromJson(@NotNull String json) {
+    return GSON.fromJson(json, new TypeToken<List<StructureMetadata>>() {}.getType());
+  }
 }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.behavior;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import io.github.risu729.erutcurts.structure.MCExtension;
+import io.github.risu729.erutcurts.util.file.CloseablePath;
+import io.github.risu729.erutcurts.util.file.ExtractionGuard;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import io.github.risu729.erutcurts.util.leveldb.LevelDbReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import lombok.experimental.UtilityClass;
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+// reads structures saved by structure blocks or commands from the db of a world
+// they are stored with the same NBT as .mcstructure files
+@UtilityClass
+public class StructureTemplates {
+
+  private final byte[] KEY_PREFIX = "structuretemplate_".getBytes(StandardCharsets.US_ASCII);
+
+  @SuppressWarnings("HardcodedFileSeparator")
+  private final String ZIP_SEPARATOR = "/";
+
+  // writes the structures into the directory as .mcstructure files
+  // structures whose names are not valid identifiers are skipped
+  @CheckReturnValue
+  public @NotNull @Unmodifiable Map<@NotNull Identifier, @NotNull Path> extract(
+      @NotNull Path world, @NotNull Path dir) throws IOException {
+    Map<byte[], byte[]> templates;
+    try (var closeableDbDir = CloseablePath.of(FileUtil.createTempDir())) {
+      var dbDir = closeableDbDir.path();
+      extractDb(world, dbDir);
+      templates = LevelDbReader.scan(dbDir, KEY_PREFIX);
+    }
+
+    Map<Identifier, Path> structures = new LinkedHashMap<>();
+    for (var template : templates.entrySet()) {
+      var key = template.getKey();
+      Identifier identifier;
+      try {
+        identifier =
+            Identifier.fromString(
+                new String(
+                    Arrays.copyOfRange(key, KEY_PREFIX.length, key.length),
+                    StandardCharsets.UTF_8));
+      } catch (IllegalArgumentException e) {
+        continue;
+      }
+      // the namespace is kept in the filename because files are sent in one flat list
+      var path =
+          FileUtil.generateUniquePathInDir(
+              dir.resolve(
+                  FileUtil.appendExtension(
+                      Path.of(identifier.toFilename()),
+                      MCExtension.MCSTRUCTURE.toString())));
+      structures.put(identifier, Files.write(path, template.getValue()));
+    }
+    return structures;
+  }
+
+  // the world may be exported in a directory, so the db next to level.dat is used
+  // files are extracted through the guard, as the sizes in the zip can be forged
+  private void extractDb(@NotNull Path world, @NotNull Path target) throws IOException {
+    var worldSize = Files.size(world);
+    var guard = new ExtractionGuard(() -> worldSize);
+    var root = target.toAbsolutePath().normalize();
+    try (var zip = new ZipFile(world.toFile())) {
+      var headers = zip.getFileHeaders();
+      var levelFilename = World.LEVEL_FILENAME.toString();
+      var level =
+          headers.stream()
+              .map(FileHeader::getFileName)
+              .filter(
+                  name ->
+                      name.equals(levelFilename) || name.endsWith(ZIP_SEPARATOR + levelFilename))
+              .min(Comparator.comparingInt(String::length))
+              .orElseThrow(() -> new IllegalArgumentException("level.dat not found"));
+      var dbPrefix =
+          level.substring(0, level.length() - levelFilename.length())
+              + World.DB_DIR_NAME
+              + ZIP_SEPARATOR;
+      for (var header : headers) {
+        var name = header.getFileName();
+        if (header.isDirectory()
+            || !name.startsWith(dbPrefix)
+            || name.substring(dbPrefix.length()).contains(ZIP_SEPARATOR)) {
+          continue;
+        }
+        guard.addEntries(1);
+        var path = root.resolve(name.substring(dbPrefix.length())).normalize();
+        checkArgument(path.getParent().equals(root), "Invalid entry: %s", name);
+        try (var input = zip.getInputStream(header);
+            var output = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW)) {
+          guard.copy(input, output);
+        }
+      }
+    }
+  }
+}
@@ -12,26 +12,28 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import io.github.risu729.erutcurts.Erutcurts;
 import io.github.risu729.erutcurts.structure.MCExtension;
+import io.github.risu729.erutcurts.structure.behavior.manifest.Manifest;
+import io.github.risu729.erutcurts.structure.behavior.manifest.ManifestHeader;
+import io.github.risu729.erutcurts.structure.behavior.manifest.ManifestModule;
 import io.github.risu729.erutcurts.structure.nbt.Coordinate;
+import io.github.risu729.erutcurts.structure.nbt.Structure;
+import io.github.risu729.erutcurts.util.Uuids;
 import io.github.risu729.erutcurts.util.file.CloseablePath;
 import io.github.risu729.erutcurts.util.file.FileUtil;
+import io.github.risu729.erutcurts.util.file.RawZipReader;
+import io.github.risu729.erutcurts.util.leveldb.LevelDbWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import lombok.Value;
 import lombok.experimental.Accessors;
-import nl.itslars.mcpenbt.NBTUtil;
-import nl.itslars.mcpenbt.enums.HeaderType;
-import nl.itslars.mcpenbt.tags.CompoundTag;
 import org.jetbrains.annotations.CheckReturnValue;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Unmodifiable;
@@ -45,7 +47,7 @@ public class World {
       FileUtil.appendExtension(Path.of("level"), MCExtension.DAT.toString());
   private static final Path WORLD_ICON_FILENAME = Path.of("world_icon.jpeg");
   private static final Path WORLD_BEHAVIOR_PACKS_FILENAME = Path.of("world_behavior_packs.json");
-  private static final Path BEHAVIOR_PACKS_DIR_NAME = Path.of("behavior_packs");
+  static final Path BEHAVIOR_PACKS_DIR_NAME = Path.of("behavior_packs");
   private static final Path FUNCTIONS_DIR_NAME = Path.of("functions");
   private static final Path TICK_FILENAME = Path.of("tick.json");
   private static final Path FIRST_LOAD_FILENAME =
@@ -54,6 +56,13 @@ public class World {
   private static final Path RELOAD_STRUCTURES_FILENAME =
       Path.of("reload_all_structures" + '.' + MCExtension.MCFUNCTION);
   private static final Path RELOAD_DIR_NAME = Path.of("reload");
+  private static final Path LOAD_UNPLACED_FILENAME =
+      FileUtil.appendExtension(
+          Path.of("internal", "load_unplaced_structures"), MCExtension.MCFUNCTION.toString());
+  private static final Path RUN_SCHEDULES_FILENAME =
+      FileUtil.appendExtension(
+          Path.of("internal", "run_load_schedules"), MCExtension.MCFUNCTION.toString());
+  static final Path DB_DIR_NAME = Path.of("db");
 
   private static final Path FIRST_LOAD_FUNCTION =
       Erutcurts.RESOURCES_DIR.resolve("first_load_function.mcfunction");
@@ -63,31 +72,43 @@ public class World {
   private static final Semver NEW_EXECUTE_MIN_ENGINE_VERSION = Semver.parse("1.19.50");
   private static final int STRUCTURES_GAP = 3;
   private static final int STRUCTURES_Y_COORDINATE = 0;
+  private static final String RELOAD_SCHEDULE_NAME = "reload";
+  private static final String UNPLACED_SCHEDULE_NAME = "unplaced";
 
   @NotNull String worldName;
   @NotNull Path worldIcon;
-  @NotNull CompoundTag level;
+  byte @NotNull [] level;
   @NotNull List<@NotNull BehaviorPack> worldBehaviorPacks;
   @NotNull Behavior behavior;
-  @NotNull TickFunctions tickFunctions;
-  @NotNull String reloadStructuresFunction;
+  @NotNull LoadSchedule reloadSchedule;
   @NotNull Map<@NotNull Identifier, @NotNull String> structureFunctions;
+  @NotNull Manifest templateManifest;
+  boolean preplaced;
 
-  @SuppressWarnings({"HardcodedLineSeparator", "HardcodedFileSeparator"})
   public World(
       @Nullable String worldName,
       @Nullable Path worldIcon,
       @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures) {
-    this.worldName =
-        worldName == null
-            ? structures.keySet().stream()
-                .findFirst()
-                .map(Identifier::toStringWithoutDefaultNamespace)
-                .orElseThrow()
-            : worldName;
+    this(worldName, worldIcon, structures, PackOptions.DEFAULT);
+  }
+
+  public World(
+      @Nullable String worldName,
+      @Nullable Path worldIcon,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options) {
+    this(worldName, worldIcon, new Behavior(null, null, structures, options), options);
+  }
+
+  // the pack name of the base behavior is the default world name
+  World(
+      @Nullable String worldName,
+      @Nullable Path worldIcon,
+      @NotNull Behavior baseBehavior,
+      @NotNull PackOptions options) {
+    this.worldName = worldName == null ? baseBehavior.packName() : worldName;
     this.worldIcon = worldIcon == null ? DEFAULT_WORLD_ICON : worldIcon;
 
-    var baseBehavior = new Behavior(null, null, structures);
     var baseManifest = baseBehavior.manifest();
     var structureMinEngine = checkNotNull(baseManifest.header().minEngineVersion());
     this.behavior =
@@ -99,41 +120,62 @@ public class World {
                     ? baseManifest.withHeader(
                         baseManifest.header().withMinEngineVersion(NEW_EXECUTE_MIN_ENGINE_VERSION))
                     : baseManifest)
-            .structureMetadata(addCoordinateToMetadata(baseBehavior.structureMetadata()))
+            .structureMetadata(
+                SkylineLayout.arrange(
+                    baseBehavior.structureMetadata(), STRUCTURES_GAP, STRUCTURES_Y_COORDINATE))
             .structures(baseBehavior.structures())
             .build();
 
     this.level =
         Levels.generateLevelDat(
-            "Structures: %s".formatted(this.worldName), Levels.FlatWorldLayers.newVoid());
+            "Structures: %s".formatted(this.worldName),
+            options.deterministic() ? null : Instant.now());
     this.worldBehaviorPacks = List.of(BehaviorPack.fromManifest(behavior.manifest()));
-    this.tickFunctions = new TickFunctions(FIRST_LOAD_FILENAME);
+    this.preplaced = options.preplaced();
 
     this.structureFunctions =
         behavior.structureMetadata().stream()
             .collect(
                 Collectors.toUnmodifiableMap(
                     StructureMetadata::identifier,
-                    metadata -> {
-                      var coordinate = checkNotNull(metadata.coordinate());
-                      return "structure load %s %d %d %d"
-                          .formatted(
-                              metadata.identifier(),
-                              coordinate.x(),
-                              coordinate.y(),
-                              coordinate.z());
-                    }));
-    this.reloadStructuresFunction =
-        structureFunctions.keySet().stream()
-            .map(Identifier::toStringWithoutDefaultNamespace)
-            .map("function reload/%s"::formatted)
-            .collect(Collectors.joining("\n"));
+                    LoadSchedule::loadCommand));
+    this.reloadSchedule =
+        LoadSchedule.plan(RELOAD_SCHEDULE_NAME, behavior.structureMetadata());
+
+    // UUIDs are derived from the behavior pack, so they are deterministic if the pack's are
+    var behaviorHeader = behavior.manifest().header();
+    this.templateManifest =
+        Manifest.builder()
+            .header(
+                ManifestHeader.builder()
+                    .type(ManifestModule.Type.WORLD_TEMPLATE)
+                    .name("Structures: %s".formatted(this.worldName))
+                    .description(behaviorHeader.description())
+                    .uuid(Uuids.nameBased(behaviorHeader.uuid(), "world_template/header"))
+                    .baseGameVersion(checkNotNull(behaviorHeader.minEngineVersion()))
+                    .lockTemplateOptions(false)
+                    .build())
+            .module(
+                ManifestModule.builder()
+                    .type(ManifestModule.Type.WORLD_TEMPLATE)
+                    .uuid(Uuids.nameBased(behaviorHeader.uuid(), "world_template/module"))
+                    .build())
+            .metadata(behavior.manifest().metadata())
+            .build();
   }
 
   @CheckReturnValue
   public static @NotNull CloseablePath generate(
       @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures) throws IOException {
-    return generate(null, null, structures);
+    return generate(structures, PackOptions.DEFAULT);
+  }
+
+  @CheckReturnValue
+  public static @NotNull CloseablePath generate(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
+    return generate(null, null, structures, options);
   }
 
   @CheckReturnValue
@@ -142,62 +184,81 @@ public class World {
       @Nullable Path worldIcon,
       @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures)
       throws IOException {
+    return generate(worldName, worldIcon, structures, PackOptions.DEFAULT);
+  }
+
+  @CheckReturnValue
+  public static @NotNull CloseablePath generate(
+      @Nullable String worldName,
+      @Nullable Path worldIcon,
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
     var tempDir = FileUtil.createTempDir();
     try (var closeableWorldDir =
-        CloseablePath.of(new World(worldName, worldIcon, structures).makeDir(tempDir))) {
+        CloseablePath.of(new World(worldName, worldIcon, structures, options).makeDir(tempDir))) {
       var worldDir = closeableWorldDir.path();
       return CloseablePath.of(
           FileUtil.zip(
               tempDir.resolve(
                   FileUtil.appendExtension(worldDir.getFileName(), MCExtension.MCWORLD.toString())),
               worldDir,
-              false),
+              false,
+              options.compressionLevel(),
+              options.deterministic()),
           true);
     }
   }
 
-  @SuppressWarnings("NumericCastThatLosesPrecision")
-  @Contract(pure = true)
-  private @NotNull @Unmodifiable List<@NotNull StructureMetadata> addCoordinateToMetadata(
-      @NotNull List<@NotNull StructureMetadata> structureMetadata) {
-    var spacing =
-        structureMetadata.stream()
-                .map(StructureMetadata::size)
-                .mapMultiToInt(
-                    (size, consumer) -> {
-                      consumer.accept(size.x());
-                      consumer.accept(size.z());
-                    })
-                .max()
-                .orElseThrow()
-            + STRUCTURES_GAP;
-    var structuresInRow = (int) Math.ceil(Math.sqrt(structureMetadata.size()));
-    Iterator<StructureMetadata> iterator =
-        structureMetadata.stream()
-            .sorted(Comparator.comparing(metadata -> metadata.identifier().toString()))
-            .iterator();
-    int edgeCoordinate = (int) Math.floor((double) structuresInRow / 2) * -spacing;
-    List<StructureMetadata> newMetadata = new ArrayList<>();
-    int x = edgeCoordinate;
-    x:
-    for (int xI = 0; xI < structuresInRow; xI++, x += spacing) {
-      int z = edgeCoordinate;
-      for (int zI = 0; zI < structuresInRow; zI++, z += spacing) {
-        var metadata = iterator.next();
-        newMetadata.add(metadata.withCoordinate(new Coordinate(x, STRUCTURES_Y_COORDINATE, z)));
-        if (!iterator.hasNext()) {
-          break x;
-        }
+  // the template is the world with a manifest, so the world is generated once
+  // and its compressed entries are copied into the template as they are
+  @CheckReturnValue
+  public static @NotNull @Unmodifiable List<@NotNull CloseablePath> generateWithTemplate(
+      @NotNull Map<@NotNull Identifier, ? extends @NotNull Path> structures,
+      @NotNull PackOptions options)
+      throws IOException {
+    var world = new World(null, null, structures, options);
+    var tempDir = FileUtil.createTempDir();
+    try (var closeableWorldDir = CloseablePath.of(world.makeDir(tempDir));
+        var closeableTemplateDir =
+            CloseablePath.of(Files.createTempDirectory(tempDir, null))) {
+      var worldDir = closeableWorldDir.path();
+      var worldFile =
+          FileUtil.zip(
+              tempDir.resolve(
+                  FileUtil.appendExtension(worldDir.getFileName(), MCExtension.MCWORLD.toString())),
+              worldDir,
+              false,
+              options.compressionLevel(),
+              options.deterministic());
+      var templateDir = closeableTemplateDir.path();
+      Files.writeString(
+          templateDir.resolve(Behavior.MANIFEST_FILENAME), world.templateManifest().toJson());
+      Map<String, FileUtil.CopiedEntry> copied = new HashMap<>();
+      try (var zip = RawZipReader.open(worldFile)) {
+        zip.entries()
+            .forEach((name, entry) -> copied.put(name, new FileUtil.CopiedEntry(zip, entry)));
+        var templateFile =
+            FileUtil.mergeZip(
+                tempDir.resolve(
+                    FileUtil.appendExtension(
+                        worldDir.getFileName(), MCExtension.MCTEMPLATE.toString())),
+                templateDir,
+                copied,
+                options.compressionLevel(),
+                options.deterministic());
+        return List.of(CloseablePath.of(worldFile, true), CloseablePath.of(templateFile, true));
       }
     }
-    return Collections.unmodifiableList(newMetadata);
   }
 
+  @SuppressWarnings("HardcodedLineSeparator")
   @CheckReturnValue
-  private @NotNull Path makeDir(@NotNull Path parent) throws IOException {
+  @NotNull
+  Path makeDir(@NotNull Path parent) throws IOException {
     var worldDir = Files.createDirectory(parent.resolve(worldName));
 
-    Files.write(worldDir.resolve(LEVEL_FILENAME), NBTUtil.write(level, HeaderType.LEVEL_DAT));
+    Files.write(worldDir.resolve(LEVEL_FILENAME), level);
     Files.copy(worldIcon, worldDir.resolve(WORLD_ICON_FILENAME));
     Files.writeString(
         worldDir.resolve(WORLD_BEHAVIOR_PACKS_FILENAME), BehaviorPack.toJson(worldBehaviorPacks));
@@ -206,10 +267,44 @@ public class World {
         behavior.makeDir(Files.createDirectory(worldDir.resolve(BEHAVIOR_PACKS_DIR_NAME)));
 
     var functionsDir = Files.createDirectory(behaviorDir.resolve(FUNCTIONS_DIR_NAME));
+    // reloading all structures starts the schedule instead of loading them at once
+    Files.writeString(
+        functionsDir.resolve(RELOAD_STRUCTURES_FILENAME), reloadSchedule.startCommands());
+    List<LoadSchedule> schedules = new ArrayList<>(List.of(reloadSchedule));
+    TickFunctions tickFunctions;
+    if (preplaced) {
+      var unplaced = preplaceStructures(worldDir.resolve(DB_DIR_NAME));
+      // the first load is not needed if all structures are in the db
+      if (unplaced.isEmpty()) {
+        tickFunctions = new TickFunctions(RUN_SCHEDULES_FILENAME);
+      } else {
+        var unplacedSchedule = LoadSchedule.plan(UNPLACED_SCHEDULE_NAME, unplaced);
+        schedules.add(unplacedSchedule);
+        tickFunctions = new TickFunctions(FIRST_LOAD_FILENAME, RUN_SCHEDULES_FILENAME);
+        FileUtil.createDirectoriesAndWriteString(
+            functionsDir.resolve(FIRST_LOAD_FILENAME),
+            Files.readString(FIRST_LOAD_FUNCTION)
+                .replace(
+                    LoadSchedule.toFunctionName(RELOAD_STRUCTURES_FILENAME),
+                    LoadSchedule.toFunctionName(LOAD_UNPLACED_FILENAME)));
+        FileUtil.createDirectoriesAndWriteString(
+            functionsDir.resolve(LOAD_UNPLACED_FILENAME), unplacedSchedule.startCommands());
+      }
+    } else {
+      tickFunctions = new TickFunctions(FIRST_LOAD_FILENAME, RUN_SCHEDULES_FILENAME);
+      FileUtil.createDirectoriesAndCopy(
+          FIRST_LOAD_FUNCTION, functionsDir.resolve(FIRST_LOAD_FILENAME));
+    }
     Files.writeString(functionsDir.resolve(TICK_FILENAME), tickFunctions.toJson());
-    FileUtil.createDirectoriesAndCopy(
-        FIRST_LOAD_FUNCTION, functionsDir.resolve(FIRST_LOAD_FILENAME));
-    Files.writeString(functionsDir.resolve(RELOAD_STRUCTURES_FILENAME), reloadStructuresFunction);
+    FileUtil.createDirectoriesAndWriteString(
+        functionsDir.resolve(RUN_SCHEDULES_FILENAME),
+        schedules.stream().map(LoadSchedule::tickCommand).collect(Collectors.joining("\n")));
+    for (var schedule : schedules) {
+      for (var function : schedule.functions().entrySet()) {
+        FileUtil.createDirectoriesAndWriteString(
+            functionsDir.resolve(function.getKey()), function.getValue());
+      }
+    }
 
     var reloadDir = Files.createDirectory(functionsDir.resolve(RELOAD_DIR_NAME));
     for (var entry : structureFunctions.entrySet()) {
@@ -220,4 +315,34 @@ public class World {
 
     return worldDir;
   }
+
+  // writes the blocks of structures into the db
+  // returns the structures which have to be loaded by commands instead
+  @CheckReturnValue
+  private @NotNull List<@NotNull StructureMetadata> preplaceStructures(@NotNull Path dbDir)
+      throws IOException {
+    var structures =
+        behavior.structureMetadata().parallelStream()
+            .collect(
+                Collectors.toUnmodifiableMap(
+                    metadata -> metadata,
+                    metadata ->
+                        Structure.fromNbt(
+                            checkNotNull(behavior.structures().get(metadata.identifier())))));
+    Map<Coordinate, Structure> placeable = new HashMap<>();
+    List<StructureMetadata> unplaced = new ArrayList<>();
+    structures.forEach(
+        (metadata, structure) -> {
+          var coordinate = checkNotNull(metadata.coordinate());
+          if (PreplacedChunks.canPreplace(structure, coordinate)) {
+            placeable.put(coordinate, structure);
+          } else {
+            unplaced.add(metadata);
+          }
+        });
+    if (!placeable.isEmpty()) {
+      LevelDbWriter.write(dbDir, PreplacedChunks.encode(placeable));
+    }
+    return unplaced;
+  }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.nbt;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.GsonBuilder;
+import io.github.risu729.erutcurts.Erutcurts;
+import io.github.risu729.erutcurts.util.Caches;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.experimental.UtilityClass;
+import nl.itslars.mcpenbt.NBTUtil;
+import nl.itslars.mcpenbt.enums.HeaderType;
+import nl.itslars.mcpenbt.tags.CompoundTag;
+import nl.itslars.mcpenbt.tags.IntTag;
+import nl.itslars.mcpenbt.tags.StringTag;
+import nl.itslars.mcpenbt.tags.Tag;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Unmodifiable;
+
+// upgrades palette entries saved by old versions into the current names and states
+// schemas are applied in order from the first one newer than the version of the entry
+// results are memoized per distinct palette entry, so each voxel is never touched
+@UtilityClass
+public class BlockUpgrader {
+
+  private final Path SCHEMAS_PATH = Erutcurts.RESOURCES_DIR.resolve("block_upgrade_schemas.json");
+
+  private final long MAX_CACHE_SIZE = 1 << 16;
+
+  // sorted by the version, each schema is looked up by the block name at most once
+  private final List<CompiledSchema> SCHEMAS;
+
+  // keyed by the encoded states because CompoundTag does not implement equals
+  private final Cache<Key, Optional<Upgraded>> CACHE =
+      Caches.newDefaultCaffeine().maximumSize(MAX_CACHE_SIZE).build();
+
+  static {
+    SchemaFile file;
+    try {
+      file =
+          new GsonBuilder()
+              .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+              .create()
+              .fromJson(Files.readString(SCHEMAS_PATH), SchemaFile.class);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    SCHEMAS =
+        file.schemas().stream()
+            .map(
+                schema ->
+                    new CompiledSchema(
+                        toVersionInt(schema.version()),
+                        schema.version(),
+                        ImmutableMap.copyOf(schema.blocks())))
+            .sorted(Comparator.comparingInt(CompiledSchema::version))
+            .collect(ImmutableList.toImmutableList());
+  }
+
+  // the same instance is returned if no schema changes the block
+  @Contract(pure = true)
+  public @NotNull Block upgrade(@NotNull Block block) {
+    var version = toVersionInt(block.version());
+    if (SCHEMAS.isEmpty() || Integer.compare(version, getLatestVersion()) >= 0) {
+      return block;
+    }
+    var upgraded =
+        CACHE.get(
+            new Key(
+                block.name(),
+                ByteBuffer.wrap(NBTUtil.write(block.states(), HeaderType.NONE)),
+                block.version()),
+            key -> upgrade(block.name(), block.states(), version));
+    return upgraded
+        .map(
+            result ->
+                new Block(
+                    result.name(),
+                    result.states(),
+                    result.version(),
+                    block.blockEntityData(),
+                    block.tickDelays()))
+        .orElse(block);
+  }
+
+  @Contract(pure = true)
+  private int getLatestVersion() {
+    return SCHEMAS.get(SCHEMAS.size() - 1).version();
+  }
+
+  // empty if no schema changes the block, so that its version is kept
+  @Contract(pure = true)
+  private @NotNull Optional<Upgraded> upgrade(
+      @NotNull String blockName, @NotNull CompoundTag states, int blockVersion) {
+    var name = blockName;
+    List<Tag> upgradedStates = states.getElements();
+    String version = null;
+    for (var schema : SCHEMAS) {
+      if (Integer.compare(schema.version(), blockVersion) <= 0) {
+        continue;
+      }
+      var blockSchema = schema.blocks().get(name);
+      if (blockSchema != null) {
+        upgradedStates = blockSchema.upgradeStates(upgradedStates);
+        name = blockSchema.upgradeName(name, upgradedStates);
+        upgradedStates = blockSchema.removeFlattenedState(upgradedStates);
+        version = schema.versionString();
+      }
+    }
+    return version == null
+        ? Optional.empty()
+        : Optional.of(new Upgraded(name, new CompoundTag("states", upgradedStates), version));
+  }
+
+  // a version like 1.20.0.1 is stored as an int of 4 bytes in palette entries
+  @Contract(pure = true)
+  private int toVersionInt(@NotNull String version) {
+    var parts = Stream.of(version.split("\\.")).mapToInt(Integer::parseInt).toArray();
+    checkArgument(parts.length == 4, "Invalid block version: %s", version);
+    return Ints.fromBytes((byte) parts[0], (byte) parts[1], (byte) parts[2], (byte) parts[3]);
+  }
+
+  private record Key(@NotNull String name, @NotNull ByteBuffer states, @NotNull String version) {}
+
+  private record Upgraded(
+      @NotNull String name, @NotNull CompoundTag states, @NotNull String version) {}
+
+  private record CompiledSchema(
+      int version,
+      @NotNull String versionString,
+      @NotNull @Unmodifiable Map<@NotNull String, @NotNull BlockSchema> blocks) {}
+
+  private record SchemaFile(@NotNull List<@NotNull Schema> schemas) {}
+
+  private record Schema(
+      @NotNull String version, @NotNull Map<@NotNull String, @NotNull BlockSchema> blocks) {}
+
+  // values are remapped and states are renamed by their old names, then states are removed and
+  // added, and finally the name is changed, by the value of the flattened state if any
+  // only string and int states can be remapped or added, other states are kept as they are
+  private record BlockSchema(
+      @Nullable String renamedId,
+      @Nullable FlattenedState flattenedState,
+      @Nullable Map<@NotNull String, @NotNull String> renamedStates,
+      @Nullable Map<@NotNull String, @NotNull Map<@NotNull String, @NotNull String>>
+          remappedStateValues,
+      @Nullable Set<@NotNull String> removedStates,
+      @Nullable Map<@NotNull String, @NotNull Object> addedStates) {
+
+    @Contract(pure = true)
+    private @NotNull List<@NotNull Tag> upgradeStates(
+        @NotNull List<? extends @NotNull Tag> states) {
+      List<Tag> upgraded = new ArrayList<>();
+      for (var state : states) {
+        var oldName = state.getName();
+        if (removedStates != null && removedStates.contains(oldName)) {
+          continue;
+        }
+        var newName =
+            renamedStates == null ? oldName : renamedStates.getOrDefault(oldName, oldName);
+        var values = remappedStateValues == null ? null : remappedStateValues.get(oldName);
+        var value = toValue(state);
+        if (values != null && value != null && values.containsKey(value.toString())) {
+          upgraded.add(new StringTag(newName, values.get(value.toString())));
+        } else if (!newName.equals(oldName) && value != null) {
+          upgraded.add(toTag(newName, value));
+        } else {
+          upgraded.add(state);
+        }
+      }
+      if (addedStates != null) {
+        var names = upgraded.stream().map(Tag::getName).collect(Collectors.toUnmodifiableSet());
+        addedStates.forEach(
+            (stateName, value) -> {
+              if (!names.contains(stateName)) {
+                upgraded.add(toTag(stateName, value));
+              }
+            });
+      }
+      return upgraded;
+    }
+
+    @Contract(pure = true)
+    private @NotNull String upgradeName(
+        @NotNull String name, @NotNull List<? extends @NotNull Tag> states) {
+      if (flattenedState != null) {
+        return states.stream()
+            .filter(state -> state.getName().equals(flattenedState.state()))
+            .map(BlockSchema::toValue)
+            .filter(Objects::nonNull)
+            .findFirst()
+            .map(value -> flattenedState.toName(value.toString()))
+            .orElse(name);
+      }
+      return renamedId == null ? name : renamedId;
+    }
+
+    @Contract(pure = true)
+    private @NotNull List<@NotNull Tag> removeFlattenedState(
+        @NotNull List<@NotNull Tag> states) {
+      if (flattenedState == null) {
+        return states;
+      }
+      return states.stream()
+          .filter(state -> !state.getName().equals(flattenedState.state()))
+          .toList();
+    }
+
+    // null for tags which are neither strings nor ints
+    @Contract(pure = true)
+    private static @Nullable Object toValue(@NotNull Tag state) {
+      if (state instanceof StringTag string) {
+        return string.getValue();
+      }
+      if (state instanceof IntTag integer) {
+        return integer.getValue();
+      }
+      return null;
+    }
+
+    // numbers of JSON are parsed as doubles by Gson
+    @Contract(pure = true)
+    private static @NotNull Tag toTag(@NotNull String name, @NotNull Object value) {
+      return value instanceof Number number
+          ? new IntTag(name, number.intValue())
+          : new StringTag(name, value.toString());
+    }
+  }
+
+  // the new name is prefix + value + suffix, with the value remapped by values if present
+  private record FlattenedState(
+      @NotNull String state,
+      @NotNull String prefix,
+      @NotNull String suffix,
+      @Nullable Map<@NotNull String, @NotNull String> values) {
+
+    @Contract(pure = true)
+    private @NotNull String toName(@NotNull String value) {
+      return prefix + (values == null ? value : values.getOrDefault(value, value)) + suffix;
+    }
+  }
+}
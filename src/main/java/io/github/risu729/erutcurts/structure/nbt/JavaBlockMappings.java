@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.nbt;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.GsonBuilder;
+import io.github.risu729.erutcurts.Erutcurts;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Unmodifiable;
+
+// translates block states of Java Edition into ones of Bedrock Edition
+// blocks and properties not in the table are unsupported rather than passed through, as Bedrock
+// Edition would silently load unknown names as unknown blocks and unknown states as defaults
+// properties are looked up in the block, its property set and the global table in this order
+@UtilityClass
+class JavaBlockMappings {
+
+  private final Path MAPPINGS_PATH = Erutcurts.RESOURCES_DIR.resolve("java_block_mappings.json");
+
+  private final String STRUCTURE_VOID = "minecraft:structure_void";
+  private final String WATERLOGGED = "waterlogged";
+  private final String WATER = "minecraft:water";
+  private final String LIQUID_DEPTH = "liquid_depth";
+
+  // the table is expanded once, so that each lookup is a single hash lookup
+  private final MappingFile MAPPINGS;
+  private final Map<String, BlockMapping> BLOCKS;
+
+  static {
+    try {
+      MAPPINGS =
+          new GsonBuilder()
+              .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+              .create()
+              .fromJson(Files.readString(MAPPINGS_PATH), MappingFile.class);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    var blocks = ImmutableMap.<String, BlockMapping>builder();
+    MAPPINGS
+        .blocks()
+        .forEach(
+            (name, mapping) -> {
+              var placeholder =
+                  MAPPINGS.placeholders().keySet().stream()
+                      .filter(key -> name.contains(toPlaceholder(key)))
+                      .findFirst();
+              if (placeholder.isEmpty()) {
+                blocks.put(name, mapping);
+                return;
+              }
+              var key = toPlaceholder(placeholder.orElseThrow());
+              MAPPINGS
+                  .placeholders()
+                  .get(placeholder.orElseThrow())
+                  .forEach(
+                      (java, bedrock) ->
+                          blocks.put(name.replace(key, java), mapping.replace(key, bedrock)));
+            });
+    BLOCKS = blocks.buildOrThrow();
+  }
+
+  // version of the states in the table
+  @Contract(pure = true)
+  @NotNull
+  String version() {
+    return MAPPINGS.version();
+  }
+
+  // the state is formatted as "name[property=value,...]", as in Sponge schematics
+  // null if the block or any of the properties is unsupported
+  @Contract(pure = true)
+  @Nullable
+  Translation translate(@NotNull String state) {
+    var bracket = state.indexOf('[');
+    var name = bracket == -1 ? state : state.substring(0, bracket);
+    Map<String, String> properties = new TreeMap<>();
+    if (bracket != -1) {
+      checkArgument(state.endsWith("]"), "Invalid block state: %s", state);
+      var propertiesString = state.substring(bracket + 1, state.length() - 1);
+      for (var property : propertiesString.split(",")) {
+        if (property.isEmpty()) {
+          continue;
+        }
+        var separator = property.indexOf('=');
+        checkArgument(separator > 0, "Invalid block state: %s", state);
+        properties.put(property.substring(0, separator), property.substring(separator + 1));
+      }
+    }
+    if (!name.contains(":")) {
+      name = "minecraft:" + name;
+    }
+    if (name.equals(STRUCTURE_VOID)) {
+      return new Translation(null, false);
+    }
+
+    var mapping = BLOCKS.get(name);
+    if (mapping == null) {
+      return null;
+    }
+    var propertySet =
+        mapping.propertySet() == null
+            ? PropertySet.EMPTY
+            : MAPPINGS.propertySets().get(mapping.propertySet());
+    var bedrockName = mapping.name();
+    SortedMap<String, Object> states = new TreeMap<>();
+    if (mapping.states() != null) {
+      mapping.states().forEach((key, value) -> states.put(key, toStateValue(value)));
+    }
+    for (var entry : properties.entrySet()) {
+      var key = entry.getKey();
+      var value = entry.getValue();
+      // renames apply in addition to the states, such as top_slot_bit of double slabs
+      if (mapping.renames() != null) {
+        bedrockName = mapping.renames().getOrDefault(key + "=" + value, bedrockName);
+      }
+      var property = findProperty(mapping, propertySet, key);
+      if (property != null) {
+        var converted = property.convert(value);
+        if (converted == null) {
+          return null;
+        }
+        states.put(property.name(), converted);
+      } else if (!mapping.isRenamedBy(key) && !isIgnored(mapping, propertySet, key)) {
+        return null;
+      }
+    }
+    return new Translation(
+        new BedrockBlock(bedrockName, states), "true".equals(properties.get(WATERLOGGED)));
+  }
+
+  // the block in the secondary layer of waterlogged blocks
+  @Contract(pure = true)
+  @NotNull
+  BedrockBlock water() {
+    return new BedrockBlock(WATER, new TreeMap<>(Map.of(LIQUID_DEPTH, 0)));
+  }
+
+  @Contract(pure = true)
+  private @Nullable PropertyMapping findProperty(
+      @NotNull BlockMapping mapping, @NotNull PropertySet propertySet, @NotNull String key) {
+    if (mapping.properties() != null && mapping.properties().containsKey(key)) {
+      return mapping.properties().get(key);
+    }
+    if (propertySet.properties().containsKey(key)) {
+      return propertySet.properties().get(key);
+    }
+    return MAPPINGS.properties().get(key);
+  }
+
+  // ignored properties have no counterparts, or are computed by Bedrock Edition such as connections
+  @Contract(pure = true)
+  private boolean isIgnored(
+      @NotNull BlockMapping mapping, @NotNull PropertySet propertySet, @NotNull String key) {
+    return (mapping.ignored() != null && mapping.ignored().contains(key))
+        || (propertySet.ignored() != null && propertySet.ignored().contains(key))
+        || MAPPINGS.ignoredProperties().contains(key);
+  }
+
+  @Contract(pure = true)
+  private @NotNull String toPlaceholder(@NotNull String key) {
+    return "{" + key + "}";
+  }
+
+  // numbers of JSON are parsed as doubles by Gson
+  @Contract(pure = true)
+  private @NotNull Object toStateValue(@NotNull Object value) {
+    if (value instanceof Number number) {
+      return number.intValue();
+    }
+    if (value instanceof Boolean bool) {
+      return (byte) (bool ? 1 : 0);
+    }
+    return value.toString();
+  }
+
+  // states are strings, ints or bytes for booleans, and sorted by the name
+  record BedrockBlock(
+      @NotNull String name,
+      @NotNull @Unmodifiable SortedMap<@NotNull String, @NotNull Object> states) {}
+
+  // block is null for structure voids
+  record Translation(@Nullable BedrockBlock block, boolean waterlogged) {}
+
+  private record MappingFile(
+      @NotNull String version,
+      @NotNull Map<@NotNull String, @NotNull Map<@NotNull String, @NotNull String>> placeholders,
+      @NotNull Map<@NotNull String, @NotNull PropertyMapping> properties,
+      @NotNull List<@NotNull String> ignoredProperties,
+      @NotNull Map<@NotNull String, @NotNull PropertySet> propertySets,
+      @NotNull Map<@NotNull String, @NotNull BlockMapping> blocks) {}
+
+  // properties shared by blocks of the same shape, such as stairs and doors
+  private record PropertySet(
+      @NotNull Map<@NotNull String, @NotNull PropertyMapping> properties,
+      @Nullable List<@NotNull String> ignored) {
+
+    private static final PropertySet EMPTY = new PropertySet(Map.of(), null);
+  }
+
+  // renames are keyed by "property=value", such as double slabs and lit furnaces
+  private record BlockMapping(
+      @NotNull String name,
+      @Nullable Map<@NotNull String, @NotNull Object> states,
+      @Nullable String propertySet,
+      @Nullable Map<@NotNull String, @NotNull PropertyMapping> properties,
+      @Nullable Map<@NotNull String, @NotNull String> renames,
+      @Nullable List<@NotNull String> ignored) {
+
+    @Contract(pure = true)
+    private boolean isRenamedBy(@NotNull String property) {
+      return renames != null
+          && renames.keySet().stream().anyMatch(key -> key.startsWith(property + "="));
+    }
+
+    @Contract(pure = true)
+    private @NotNull BlockMapping replace(@NotNull String target, @NotNull String replacement) {
+      Map<String, Object> replacedStates = new TreeMap<>();
+      if (states != null) {
+        states.forEach(
+            (key, value) ->
+                replacedStates.put(
+                    key,
+                    value instanceof String string ? string.replace(target, replacement) : value));
+      }
+      Map<String, String> replacedRenames = null;
+      if (renames != null) {
+        replacedRenames = new TreeMap<>();
+        for (var entry : renames.entrySet()) {
+          replacedRenames.put(entry.getKey(), entry.getValue().replace(target, replacement));
+        }
+      }
+      return new BlockMapping(
+          name.replace(target, replacement),
+          replacedStates,
+          propertySet,
+          properties,
+          replacedRenames,
+          ignored);
+    }
+  }
+
+  // type is "string", "int" or "bool", and string if absent
+  // if values are present, they map each value of Java Edition, and other values are unsupported
+  private record PropertyMapping(
+      @NotNull String name,
+      @Nullable String type,
+      @Nullable Map<@NotNull String, @NotNull Object> values) {
+
+    @Contract(pure = true)
+    private @Nullable Object convert(@NotNull String value) {
+      if (values != null) {
+        return values.containsKey(value) ? toStateValue(values.get(value)) : null;
+      }
+      return switch (type == null ? "string" : type) {
+        case "int" -> Integer.parseInt(value);
+        case "bool" -> (byte) (Boolean.parseBoolean(value) ? 1 : 0);
+        default -> value;
+      };
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.nbt;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.NotNull;
+
+// reads big-endian NBT of Java Edition tag by tag, so that large arrays and lists are never
+// materialized as tags, the caller reads or skips each value after its type and name
+final class JavaNbtInput implements Closeable {
+
+  static final byte TAG_END = 0;
+  static final byte TAG_BYTE = 1;
+  static final byte TAG_SHORT = 2;
+  static final byte TAG_INT = 3;
+  static final byte TAG_LONG = 4;
+  static final byte TAG_FLOAT = 5;
+  static final byte TAG_DOUBLE = 6;
+  static final byte TAG_BYTE_ARRAY = 7;
+  static final byte TAG_STRING = 8;
+  static final byte TAG_LIST = 9;
+  static final byte TAG_COMPOUND = 10;
+  static final byte TAG_INT_ARRAY = 11;
+  static final byte TAG_LONG_ARRAY = 12;
+
+  private static final int GZIP_MAGIC = 0x1f8b;
+  private static final int MAX_DEPTH = 512;
+
+  private final DataInputStream input;
+  private final int maxArrayLength;
+  private int depth;
+
+  private JavaNbtInput(@NotNull DataInputStream input, int maxArrayLength) {
+    this.input = input;
+    this.maxArrayLength = maxArrayLength;
+  }
+
+  // files saved by Minecraft are gzipped, but uncompressed ones are also accepted
+  @CheckReturnValue
+  static @NotNull JavaNbtInput open(@NotNull Path path, int maxArrayLength) throws IOException {
+    var buffered = new BufferedInputStream(Files.newInputStream(path));
+    buffered.mark(2);
+    var magic = buffered.read() << 8 | buffered.read();
+    buffered.reset();
+    return new JavaNbtInput(
+        new DataInputStream(magic == GZIP_MAGIC ? new GZIPInputStream(buffered) : buffered),
+        maxArrayLength);
+  }
+
+  // the type of the next tag in a compound, or TAG_END at the end of the compound
+  @CheckReturnValue
+  byte readType() throws IOException {
+    var type = input.readByte();
+    checkArgument(type >= TAG_END && type <= TAG_LONG_ARRAY, "Unknown tag type: %s", type);
+    return type;
+  }
+
+  // the root is a named compound, whose name is returned
+  @CheckReturnValue
+  @NotNull
+  String readRoot() throws IOException {
+    checkArgument(readType() == TAG_COMPOUND, "The root is not a compound");
+    return readString();
+  }
+
+  @CheckReturnValue
+  @NotNull
+  String readString() throws IOException {
+    return input.readUTF();
+  }
+
+  @CheckReturnValue
+  int readInt() throws IOException {
+    return input.readInt();
+  }
+
+  // integral values of any width, as some tools write sizes as ints instead of shorts
+  @CheckReturnValue
+  long readIntegral(byte type) throws IOException {
+    return switch (type) {
+      case TAG_BYTE -> input.readByte();
+      case TAG_SHORT -> Short.toUnsignedInt(input.readShort());
+      case TAG_INT -> input.readInt();
+      case TAG_LONG -> input.readLong();
+      default -> throw new IllegalArgumentException("Not an integral tag: " + type);
+    };
+  }
+
+  @CheckReturnValue
+  byte @NotNull [] readByteArray() throws IOException {
+    var bytes = new byte[readLength()];
+    input.readFully(bytes);
+    return bytes;
+  }
+
+  @CheckReturnValue
+  int @NotNull [] readIntArray() throws IOException {
+    var ints = new int[readLength()];
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = input.readInt();
+    }
+    return ints;
+  }
+
+  // returns the element type, the length is read by readListLength
+  @CheckReturnValue
+  byte readListType() throws IOException {
+    return readType();
+  }
+
+  @CheckReturnValue
+  int readListLength() throws IOException {
+    return readLength();
+  }
+
+  // for small values such as block properties, compounds are maps and lists are lists
+  @CheckReturnValue
+  @NotNull
+  Object readValue(byte type) throws IOException {
+    enter();
+    try {
+      return switch (type) {
+        case TAG_BYTE -> input.readByte();
+        case TAG_SHORT -> input.readShort();
+        case TAG_INT -> input.readInt();
+        case TAG_LONG -> input.readLong();
+        case TAG_FLOAT -> input.readFloat();
+        case TAG_DOUBLE -> input.readDouble();
+        case TAG_BYTE_ARRAY -> readByteArray();
+        case TAG_STRING -> readString();
+        case TAG_LIST -> {
+          var elementType = readListType();
+          var length = readListLength();
+          List<Object> list = new ArrayList<>();
+          for (int i = 0; i < length; i++) {
+            list.add(readValue(elementType));
+          }
+          yield Collections.unmodifiableList(list);
+        }
+        case TAG_COMPOUND -> {
+          Map<String, Object> compound = new LinkedHashMap<>();
+          for (var elementType = readType(); elementType != TAG_END; elementType = readType()) {
+            var name = readString();
+            compound.put(name, readValue(elementType));
+          }
+          yield Collections.unmodifiableMap(compound);
+        }
+        case TAG_INT_ARRAY -> readIntArray();
+        case TAG_LONG_ARRAY -> {
+          var longs = new long[readLength()];
+          for (int i = 0; i < longs.length; i++) {
+            longs[i] = input.readLong();
+          }
+          yield longs;
+        }
+        default -> throw new IllegalArgumentException("Unknown tag type: " + type);
+      };
+    } finally {
+      depth--;
+    }
+  }
+
+  void skip(byte type) throws IOException {
+    enter();
+    try {
+      switch (type) {
+        case TAG_BYTE -> input.skipNBytes(Byte.BYTES);
+        case TAG_SHORT -> input.skipNBytes(Short.BYTES);
+        case TAG_INT, TAG_FLOAT -> input.skipNBytes(Integer.BYTES);
+        case TAG_LONG, TAG_DOUBLE -> input.skipNBytes(Long.BYTES);
+        case TAG_BYTE_ARRAY -> input.skipNBytes(readLength());
+        case TAG_STRING -> input.skipNBytes(Short.toUnsignedInt(input.readShort()));
+        case TAG_LIST -> {
+          var elementType = readListType();
+          var length = readListLength();
+          for (int i = 0; i < length; i++) {
+            skip(elementType);
+          }
+        }
+        case TAG_COMPOUND -> {
+          for (var elementType = readType(); elementType != TAG_END; elementType = readType()) {
+            skip(TAG_STRING);
+            skip(elementType);
+          }
+        }
+        case TAG_INT_ARRAY -> input.skipNBytes((long) readLength() * Integer.BYTES);
+        case TAG_LONG_ARRAY -> input.skipNBytes((long) readLength() * Long.BYTES);
+        default -> throw new IllegalArgumentException("Unknown tag type: " + type);
+      }
+    } finally {
+      depth--;
+    }
+  }
+
+  private int readLength() throws IOException {
+    var length = input.readInt();
+    checkArgument(
+        length >= 0 && length <= maxArrayLength, "Invalid length of an array: %s", length);
+    return length;
+  }
+
+  private void enter() {
+    checkArgument(++depth <= MAX_DEPTH, "Too deeply nested");
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+}
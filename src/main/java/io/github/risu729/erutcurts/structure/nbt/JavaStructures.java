@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.nbt;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import io.github.risu729.erutcurts.structure.MCExtension;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// converts structures of Java Edition into .mcstructure files
+// supports structure block files (.nbt) and Sponge schematics (.schem) of version 2 and 3
+// blocks are kept as palette indices in int arrays, block entities and entities are dropped
+@UtilityClass
+public class JavaStructures {
+
+  public final String SCHEMATIC_EXTENSION = "schem";
+
+  private final int MAX_VOLUME = 1 << 24;
+  private final int VOID = -1;
+  private final int UNSUPPORTED = -2;
+
+  @Contract(pure = true)
+  public boolean isJavaStructure(@NotNull String filename) {
+    return FileUtil.isExtension(filename, MCExtension.NBT.toString(), SCHEMATIC_EXTENSION);
+  }
+
+  @CheckReturnValue
+  public @NotNull Path convert(@NotNull Path source, @NotNull Path target) throws IOException {
+    var decoded =
+        FileUtil.isExtension(source, SCHEMATIC_EXTENSION)
+            ? readSchematic(source)
+            : readStructure(source);
+
+    // Java palette indices are translated once per palette entry, not per block
+    List<JavaBlockMappings.BedrockBlock> palette = new ArrayList<>();
+    Map<JavaBlockMappings.BedrockBlock, Integer> paletteIndices = new HashMap<>();
+    var primaryIndices = new int[decoded.palette().size()];
+    var waterlogged = new boolean[decoded.palette().size()];
+    for (int i = 0; i < primaryIndices.length; i++) {
+      var translation = JavaBlockMappings.translate(decoded.palette().get(i));
+      if (translation == null) {
+        primaryIndices[i] = UNSUPPORTED;
+        continue;
+      }
+      var block = translation.block();
+      primaryIndices[i] =
+          block == null
+              ? VOID
+              : paletteIndices.computeIfAbsent(
+                  block,
+                  b -> {
+                    palette.add(b);
+                    return palette.size() - 1;
+                  });
+      waterlogged[i] = translation.waterlogged();
+    }
+    // water is added to the palette only if any block is waterlogged
+    var waterIndex = VOID;
+    for (var b : waterlogged) {
+      if (b) {
+        palette.add(JavaBlockMappings.water());
+        waterIndex = palette.size() - 1;
+        break;
+      }
+    }
+
+    // the array of Java indices is reused for Bedrock indices to save memory
+    var blocks = decoded.blocks();
+    var secondary = new BitSet(blocks.length);
+    // unsupported blocks are reported only if used, and all at once
+    Set<String> unsupported = new TreeSet<>();
+    for (int i = 0; i < blocks.length; i++) {
+      var javaIndex = blocks[i];
+      if (javaIndex == VOID) {
+        continue;
+      }
+      checkArgument(
+          javaIndex >= 0 && javaIndex < primaryIndices.length,
+          "Invalid palette index: %s",
+          javaIndex);
+      if (primaryIndices[javaIndex] == UNSUPPORTED) {
+        unsupported.add(decoded.palette().get(javaIndex));
+        continue;
+      }
+      blocks[i] = primaryIndices[javaIndex];
+      if (waterlogged[javaIndex]) {
+        secondary.set(i);
+      }
+    }
+    checkArgument(unsupported.isEmpty(), "Unsupported blocks: %s", unsupported);
+    McStructureOutput.write(
+        target,
+        decoded.size(),
+        blocks,
+        secondary,
+        waterIndex,
+        palette,
+        JavaBlockMappings.version());
+    return target;
+  }
+
+  // the root has "size", "palette" or "palettes" and "blocks" in any order
+  // blocks are buffered as packed ints because the size may come after them
+  @CheckReturnValue
+  private @NotNull Decoded readStructure(@NotNull Path source) throws IOException {
+    Size size = null;
+    List<String> palette = null;
+    var positions = new IntBuffer();
+    try (var input = JavaNbtInput.open(source, MAX_VOLUME)) {
+      input.readRoot();
+      for (var type = input.readType(); type != JavaNbtInput.TAG_END; type = input.readType()) {
+        var name = input.readString();
+        switch (name) {
+          case "size" -> size = new Size(toInts(input.readValue(type)));
+          case "palette" -> palette = readPalette(input.readValue(type));
+          case "palettes" -> {
+            // variants of the same structure, such as shipwrecks, the first one is used
+            var palettes = (List<?>) input.readValue(type);
+            checkArgument(!palettes.isEmpty(), "No palettes");
+            palette = readPalette(palettes.get(0));
+          }
+          case "blocks" -> readBlocks(input, type, positions);
+          default -> input.skip(type);
+        }
+      }
+    }
+    checkArgument(size != null && palette != null, "Not a structure file");
+    checkArgument(
+        (long) size.x() * size.y() * size.z() <= MAX_VOLUME, "Too large structure: %s", size);
+
+    var blocks = new int[size.volume()];
+    Arrays.fill(blocks, VOID);
+    for (int i = 0; i < positions.size(); i += 4) {
+      var x = positions.get(i);
+      var y = positions.get(i + 1);
+      var z = positions.get(i + 2);
+      checkArgument(
+          x >= 0 && x < size.x() && y >= 0 && y < size.y() && z >= 0 && z < size.z(),
+          "Block out of the structure: %s, %s, %s",
+          x,
+          y,
+          z);
+      blocks[index(size, x, y, z)] = positions.get(i + 3);
+    }
+    return new Decoded(size, palette, blocks);
+  }
+
+  // each block is a compound of "state" and "pos", and optionally "nbt" which is skipped
+  private void readBlocks(@NotNull JavaNbtInput input, byte type, @NotNull IntBuffer positions)
+      throws IOException {
+    checkArgument(type == JavaNbtInput.TAG_LIST, "Invalid blocks");
+    var elementType = input.readListType();
+    var length = input.readListLength();
+    checkArgument(length == 0 || elementType == JavaNbtInput.TAG_COMPOUND, "Invalid blocks");
+    for (int i = 0; i < length; i++) {
+      int[] pos = null;
+      var state = VOID;
+      for (var tag = input.readType(); tag != JavaNbtInput.TAG_END; tag = input.readType()) {
+        switch (input.readString()) {
+          case "state" -> state = (int) input.readIntegral(tag);
+          case "pos" -> pos = toInts(input.readValue(tag)).stream().mapToInt(v -> v).toArray();
+          default -> input.skip(tag);
+        }
+      }
+      checkArgument(pos != null && pos.length == 3 && state != VOID, "Invalid block");
+      positions.add(pos[0]);
+      positions.add(pos[1]);
+      positions.add(pos[2]);
+      positions.add(state);
+    }
+  }
+
+  // block states are formatted as in Sponge schematics to be translated in the same way
+  @Contract(pure = true)
+  private @NotNull List<@NotNull String> readPalette(@NotNull Object value) {
+    return ((List<?>) value)
+        .stream()
+        .map(entry -> (Map<?, ?>) entry)
+        .map(
+            entry -> {
+              var name = (String) checkNotNull(entry.get("Name"), "No name in the palette");
+              var properties = (Map<?, ?>) entry.get("Properties");
+              return properties == null || properties.isEmpty()
+                  ? name
+                  : properties.entrySet().stream()
+                      .map(property -> property.getKey() + "=" + property.getValue())
+                      .sorted()
+                      .collect(Collectors.joining(",", name + "[", "]"));
+            })
+        .toList();
+  }
+
+  // version 3 has the palette and the data in "Blocks", version 2 has them in the root
+  // the root of version 3 is wrapped in a compound named "Schematic"
+  @CheckReturnValue
+  private @NotNull Decoded readSchematic(@NotNull Path source) throws IOException {
+    var schematic = new Schematic();
+    // a varint takes up to 5 bytes, though more than 2 bytes are rare
+    try (var input = JavaNbtInput.open(source, MAX_VOLUME * 5)) {
+      input.readRoot();
+      readSchematicCompound(input, schematic);
+    }
+    checkArgument(
+        schematic.width > 0
+            && schematic.height > 0
+            && schematic.length > 0
+            && schematic.palette != null
+            && schematic.data != null,
+        "Not a schematic file");
+    var size = new Size(schematic.width, schematic.height, schematic.length);
+    checkArgument(
+        (long) size.x() * size.y() * size.z() <= MAX_VOLUME, "Too large structure: %s", size);
+
+    List<String> palette = new ArrayList<>();
+    schematic.palette.forEach(
+        (state, index) -> {
+          while (palette.size() <= index) {
+            palette.add(null);
+          }
+          palette.set(index, state);
+        });
+    // unused indices are filled with air, they never appear in the data
+    palette.replaceAll(state -> state == null ? "minecraft:air" : state);
+
+    // the data is varints in YZX order, which are decoded without an intermediate array
+    var blocks = new int[size.volume()];
+    var data = schematic.data;
+    var offset = 0;
+    for (int y = 0; y < size.y(); y++) {
+      for (int z = 0; z < size.z(); z++) {
+        for (int x = 0; x < size.x(); x++) {
+          var value = 0;
+          var shift = 0;
+          byte b;
+          do {
+            checkArgument(offset < data.length, "The block data is too short");
+            checkArgument(shift < Integer.SIZE, "Invalid varint in the block data");
+            b = data[offset++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+          } while (b < 0);
+          blocks[index(size, x, y, z)] = value;
+        }
+      }
+    }
+    return new Decoded(size, palette, blocks);
+  }
+
+  private void readSchematicCompound(@NotNull JavaNbtInput input, @NotNull Schematic schematic)
+      throws IOException {
+    for (var type = input.readType(); type != JavaNbtInput.TAG_END; type = input.readType()) {
+      switch (input.readString()) {
+        case "Schematic", "Blocks" -> {
+          checkArgument(type == JavaNbtInput.TAG_COMPOUND, "Invalid schematic");
+          readSchematicCompound(input, schematic);
+        }
+        case "Width" -> schematic.width = (int) input.readIntegral(type);
+        case "Height" -> schematic.height = (int) input.readIntegral(type);
+        case "Length" -> schematic.length = (int) input.readIntegral(type);
+        case "Palette" -> {
+          checkArgument(type == JavaNbtInput.TAG_COMPOUND, "Invalid palette");
+          Map<String, Integer> palette = new HashMap<>();
+          for (var tag = input.readType(); tag != JavaNbtInput.TAG_END; tag = input.readType()) {
+            var state = input.readString();
+            var index = (int) input.readIntegral(tag);
+            checkArgument(index >= 0 && index < MAX_VOLUME, "Invalid palette index: %s", index);
+            palette.put(state, index);
+          }
+          schematic.palette = palette;
+        }
+        case "BlockData", "Data" -> {
+          checkArgument(type == JavaNbtInput.TAG_BYTE_ARRAY, "Invalid block data");
+          schematic.data = input.readByteArray();
+        }
+        default -> input.skip(type);
+      }
+    }
+  }
+
+  @Contract(pure = true)
+  private int index(@NotNull Size size, int x, int y, int z) {
+    return (x * size.y() + y) * size.z() + z;
+  }
+
+  @Contract(pure = true)
+  private @NotNull List<@NotNull Integer> toInts(@NotNull Object value) {
+    var list = value instanceof int[] ints ? Arrays.stream(ints).boxed().toList() : (List<?>) value;
+    checkArgument(list.size() == 3, "Invalid coordinates: %s", list);
+    return list.stream().map(element -> ((Number) element).intValue()).toList();
+  }
+
+  // palette is indexed by Java palette indices, and blocks are in the order of Size#coordinates
+  private record Decoded(
+      @NotNull Size size, @NotNull List<@NotNull String> palette, int @NotNull [] blocks) {}
+
+  private static final class Schematic {
+
+    private int width;
+    private int height;
+    private int length;
+    private @Nullable Map<String, Integer> palette;
+    private byte @Nullable [] data;
+  }
+
+  // growable int array, to avoid boxing millions of coordinates
+  private static final class IntBuffer {
+
+    private int[] values = new int[1024];
+    private int size;
+
+    private void add(int value) {
+      if (size == values.length) {
+        checkArgument(size <= MAX_VOLUME * 4 - values.length, "Too many blocks");
+        values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[size++] = value;
+    }
+
+    private int get(int index) {
+      return values[index];
+    }
+
+    private int size() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.structure.nbt;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.io.LittleEndianDataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Stream;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.NotNull;
+
+// writes a .mcstructure file from primitive arrays, without building the tags in memory
+// based on "Bedrock mcstructure file format" by tryashtar
+@UtilityClass
+class McStructureOutput {
+
+  private final int FORMAT_VERSION = 1;
+  private final int VOID = -1;
+
+  // indices are in the order of Size#coordinates, and -1 is void
+  // the secondary layer is void where secondary is false
+  void write(
+      @NotNull Path target,
+      @NotNull Size size,
+      int @NotNull [] primary,
+      @NotNull BitSet secondary,
+      int secondaryIndex,
+      @NotNull List<JavaBlockMappings.@NotNull BedrockBlock> palette,
+      @NotNull String version)
+      throws IOException {
+    checkArgument(
+        primary.length == size.volume(), "The number of blocks does not match the size");
+    var versionInt =
+        Stream.of(version.split("\\."))
+            .mapToInt(Integer::parseInt)
+            .reduce(0, (result, part) -> result << 8 | part);
+    try (var output =
+        new LittleEndianDataOutputStream(
+            new BufferedOutputStream(
+                Files.newOutputStream(target, StandardOpenOption.CREATE_NEW)))) {
+      writeHeader(output, JavaNbtInput.TAG_COMPOUND, "");
+      writeHeader(output, JavaNbtInput.TAG_INT, "format_version");
+      output.writeInt(FORMAT_VERSION);
+      writeHeader(output, JavaNbtInput.TAG_LIST, "size");
+      writeListHeader(output, JavaNbtInput.TAG_INT, 3);
+      output.writeInt(size.x());
+      output.writeInt(size.y());
+      output.writeInt(size.z());
+
+      writeHeader(output, JavaNbtInput.TAG_COMPOUND, "structure");
+      writeHeader(output, JavaNbtInput.TAG_LIST, "block_indices");
+      writeListHeader(output, JavaNbtInput.TAG_LIST, 2);
+      writeListHeader(output, JavaNbtInput.TAG_INT, primary.length);
+      for (var index : primary) {
+        output.writeInt(index);
+      }
+      writeListHeader(output, JavaNbtInput.TAG_INT, primary.length);
+      for (int i = 0; i < primary.length; i++) {
+        output.writeInt(secondary.get(i) ? secondaryIndex : VOID);
+      }
+      writeHeader(output, JavaNbtInput.TAG_LIST, "entities");
+      writeListHeader(output, JavaNbtInput.TAG_COMPOUND, 0);
+      writeHeader(output, JavaNbtInput.TAG_COMPOUND, "palette");
+      writeHeader(output, JavaNbtInput.TAG_COMPOUND, "default");
+      writeHeader(output, JavaNbtInput.TAG_LIST, "block_palette");
+      writeListHeader(output, JavaNbtInput.TAG_COMPOUND, palette.size());
+      for (var block : palette) {
+        writeHeader(output, JavaNbtInput.TAG_STRING, "name");
+        writeString(output, block.name());
+        writeHeader(output, JavaNbtInput.TAG_COMPOUND, "states");
+        for (var state : block.states().entrySet()) {
+          var value = state.getValue();
+          if (value instanceof Integer integer) {
+            writeHeader(output, JavaNbtInput.TAG_INT, state.getKey());
+            output.writeInt(integer);
+          } else if (value instanceof Byte b) {
+            writeHeader(output, JavaNbtInput.TAG_BYTE, state.getKey());
+            output.writeByte(b);
+          } else {
+            writeHeader(output, JavaNbtInput.TAG_STRING, state.getKey());
+            writeString(output, value.toString());
+          }
+        }
+        output.writeByte(JavaNbtInput.TAG_END);
+        writeHeader(output, JavaNbtInput.TAG_INT, "version");
+        output.writeInt(versionInt);
+        output.writeByte(JavaNbtInput.TAG_END);
+      }
+      writeHeader(output, JavaNbtInput.TAG_COMPOUND, "block_position_data");
+      output.writeByte(JavaNbtInput.TAG_END);
+      output.writeByte(JavaNbtInput.TAG_END); // default
+      output.writeByte(JavaNbtInput.TAG_END); // palette
+      output.writeByte(JavaNbtInput.TAG_END); // structure
+
+      writeHeader(output, JavaNbtInput.TAG_LIST, "structure_world_origin");
+      writeListHeader(output, JavaNbtInput.TAG_INT, 3);
+      output.writeInt(0);
+      output.writeInt(0);
+      output.writeInt(0);
+      output.writeByte(JavaNbtInput.TAG_END); // root
+    }
+  }
+
+  private void writeHeader(
+      @NotNull LittleEndianDataOutputStream output, byte type, @NotNull String name)
+      throws IOException {
+    output.writeByte(type);
+    writeString(output, name);
+  }
+
+  private void writeListHeader(
+      @NotNull LittleEndianDataOutputStream output, byte elementType, int length)
+      throws IOException {
+    output.writeByte(elementType);
+    output.writeInt(length);
+  }
+
+  // writeUTF of LittleEndianDataOutputStream writes the length in big endian
+  private void writeString(@NotNull LittleEndianDataOutputStream output, @NotNull String string)
+      throws IOException {
+    var bytes = string.getBytes(StandardCharsets.UTF_8);
+    checkArgument(bytes.length <= 0xffff, "Too long string: %s", string);
+    output.writeShort(bytes.length);
+    output.write(bytes);
+  }
+}
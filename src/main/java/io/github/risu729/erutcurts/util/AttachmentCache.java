@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import io.github.risu729.erutcurts.Erutcurts;
+import io.github.risu729.erutcurts.util.file.FileUtil;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.experimental.UtilityClass;
+import net.dv8tion.jda.api.entities.Message;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.NotNull;
+
+// bytes of downloaded attachments keyed by the attachment ID, so each file is fetched once
+// small files are kept in memory and spilled to the disk when evicted for the size
+// large files are kept on the disk only, both tiers are weighted by bytes
+@UtilityClass
+class AttachmentCache {
+
+  private final Path DIR = Erutcurts.TEMP_DIR.resolve("attachments");
+  private final Duration RETENTION = Duration.ofMinutes(30);
+  private final AtomicLong SEQUENCE = new AtomicLong();
+
+  private final long MAX_MEMORY_SIZE = 64L << 20;
+  private final int MAX_MEMORY_ENTRY_SIZE = 1 << 20;
+  // weights are in KiB because they are ints
+  private final long MAX_DISK_SIZE_KIB = 4L << 20;
+
+  private final Cache<Long, byte[]> MEMORY =
+      Caffeine.newBuilder()
+          .scheduler(Scheduler.systemScheduler())
+          .expireAfterAccess(RETENTION)
+          .maximumWeight(MAX_MEMORY_SIZE)
+          .weigher((Long id, byte[] bytes) -> bytes.length)
+          .evictionListener(
+              (Long id, byte[] bytes, RemovalCause cause) -> {
+                if (id != null && bytes != null && cause == RemovalCause.SIZE) {
+                  spill(id, bytes);
+                }
+              })
+          .build();
+
+  // files are copied in and out instead of linked, as callers may modify their files in place
+  // files being copied out are not affected by the deletion on eviction once opened
+  private final Cache<Long, DiskEntry> DISK =
+      Caffeine.newBuilder()
+          .scheduler(Scheduler.systemScheduler())
+          .expireAfterAccess(RETENTION)
+          .maximumWeight(MAX_DISK_SIZE_KIB)
+          .weigher((Long id, DiskEntry entry) -> (int) Math.min(entry.kib(), Integer.MAX_VALUE))
+          .removalListener(
+              (Long id, DiskEntry entry, RemovalCause cause) -> {
+                if (entry != null) {
+                  FileUtil.deleteQuietly(entry.path());
+                }
+              })
+          .build();
+
+  // copies the cached bytes to the path, returns false if not cached
+  @CheckReturnValue
+  boolean copyTo(Message.@NotNull Attachment attachment, @NotNull Path path) {
+    var id = attachment.getIdLong();
+    try {
+      var bytes = MEMORY.getIfPresent(id);
+      if (bytes != null) {
+        Files.write(path, bytes, StandardOpenOption.CREATE_NEW);
+        return true;
+      }
+      var entry = DISK.getIfPresent(id);
+      if (entry != null) {
+        try {
+          Files.copy(entry.path(), path);
+          return true;
+        } catch (NoSuchFileException e) {
+          // deleted on eviction after the lookup, so downloaded again
+          DISK.asMap().remove(id, entry);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return false;
+  }
+
+  // stores a downloaded file, which must be complete
+  void put(Message.@NotNull Attachment attachment, @NotNull Path path) {
+    var id = attachment.getIdLong();
+    try {
+      var size = Files.size(path);
+      if (size <= MAX_MEMORY_ENTRY_SIZE) {
+        MEMORY.put(id, Files.readAllBytes(path));
+        return;
+      }
+      var cached = createCachePath(id);
+      Files.copy(path, cached);
+      DISK.put(id, new DiskEntry(cached, size));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // spilling is best effort, the file is downloaded again if it fails
+  private void spill(long id, byte @NotNull [] bytes) {
+    try {
+      var cached = createCachePath(id);
+      Files.write(cached, bytes, StandardOpenOption.CREATE_NEW);
+      DISK.put(id, new DiskEntry(cached, bytes.length));
+    } catch (IOException ignored) {
+      // the partially written file is removed with the temp dir
+    }
+  }
+
+  // a sequence number is appended as the same attachment may be stored concurrently
+  @CheckReturnValue
+  private @NotNull Path createCachePath(long id) throws IOException {
+    Files.createDirectories(DIR);
+    return DIR.resolve(id + "_" + SEQUENCE.getAndIncrement());
+  }
+
+  private record DiskEntry(@NotNull Path path, long size) {
+
+    private long kib() {
+      return Math.max(1, size >> 10);
+    }
+  }
+}
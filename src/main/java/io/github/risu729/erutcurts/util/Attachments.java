@@ -8,50 +8,193 @@
 
 package io.github.risu729.erutcurts.util;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.github.risu729.erutcurts.util.file.FileUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import lombok.experimental.UtilityClass;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message;
 import org.jetbrains.annotations.CheckReturnValue;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 @UtilityClass
 public class Attachments {
 
+  private final int MAX_CONCURRENT_DOWNLOADS = 8;
+  private final Duration DOWNLOAD_TIMEOUT = Duration.ofMinutes(2);
+  private final int BUFFER_SIZE = 1 << 16;
+
+  // budgets in bytes, configurable by env variables
+  private final long MAX_DOWNLOAD_FILE_SIZE =
+      Long.parseLong(Envs.getEnv("MAX_DOWNLOAD_FILE_SIZE", String.valueOf(256L << 20)));
+  private final long MAX_DOWNLOAD_REQUEST_SIZE =
+      Long.parseLong(Envs.getEnv("MAX_DOWNLOAD_REQUEST_SIZE", String.valueOf(1L << 30)));
+
+  // files are written on these threads, not on the threads of JDA
+  private final Executor DOWNLOAD_EXECUTOR =
+      Executors.newFixedThreadPool(
+          MAX_CONCURRENT_DOWNLOADS,
+          new ThreadFactoryBuilder().setNameFormat("download-%d").setDaemon(true).build());
+
+  // downloads concurrently, with at most MAX_CONCURRENT_DOWNLOADS files in flight
+  // paths are returned in the order of the attachments
   @CheckReturnValue
   public @NotNull List<@NotNull Path> download(
       @NotNull Collection<? extends Message.@NotNull Attachment> attachments,
       @NotNull Path dir,
       boolean assignUniqueName) {
-    return attachments.stream()
-        .map(attachment -> download(attachment, dir, assignUniqueName))
-        .toList();
+    checkSize(attachments);
+
+    // paths are decided beforehand, as unique names cannot be generated while downloading
+    Set<Path> reserved = new HashSet<>();
+    List<Path> paths = new ArrayList<>();
+    for (var attachment : attachments) {
+      var path = dir.resolve(attachment.getFileName());
+      if (assignUniqueName) {
+        path = FileUtil.generateUniquePathInDir(path, reserved);
+      } else {
+        checkState(
+            !Files.exists(path) && !reserved.contains(path), "File already exists: %s", path);
+      }
+      reserved.add(path);
+      paths.add(path);
+    }
+
+    var permits = new Semaphore(MAX_CONCURRENT_DOWNLOADS);
+    // completed by the first failure, so that the other downloads are stopped immediately
+    var failure = new CompletableFuture<Void>();
+    List<CompletableFuture<InputStream>> requests = new ArrayList<>();
+    List<CompletableFuture<Path>> futures = new ArrayList<>();
+    var iterator = attachments.iterator();
+    for (var path : paths) {
+      var attachment = iterator.next();
+      // files fetched before are served from the cache without any request to the CDN
+      if (AttachmentCache.copyTo(attachment, path)) {
+        futures.add(CompletableFuture.completedFuture(path));
+        continue;
+      }
+      // a failure releases a permit too, so no more requests are made after it
+      permits.acquireUninterruptibly();
+      if (failure.isDone()) {
+        permits.release();
+        break;
+      }
+      var request = attachment.getProxy().download();
+      requests.add(request);
+      futures.add(
+          request
+              .thenApplyAsync(
+                  stream -> {
+                    copy(stream, path, attachment.getSize(), failure);
+                    AttachmentCache.put(attachment, path);
+                    return path;
+                  },
+                  DOWNLOAD_EXECUTOR)
+              .orTimeout(DOWNLOAD_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+              .whenComplete(
+                  (result, e) -> {
+                    permits.release();
+                    if (e != null) {
+                      failure.completeExceptionally(e);
+                    }
+                  }));
+    }
+    try {
+      // the failure is completed before the future of the download, so it is checked first
+      CompletableFuture.anyOf(
+              failure, CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)))
+          .join();
+    } catch (CompletionException e) {
+      // cancelling the requests aborts the HTTP calls, and copies stop at the next read
+      requests.forEach(request -> request.cancel(true));
+      throw e;
+    }
+    return futures.stream().map(CompletableFuture::join).toList();
   }
 
   @CheckReturnValue
   public @NotNull Path download(
       Message.@NotNull Attachment attachment, @NotNull Path dir, boolean assignUniqueName) {
-    var path = dir.resolve(attachment.getFileName());
-    if (!assignUniqueName) {
-      checkState(!Files.exists(path), "File already exists: %s", path);
+    return download(List.of(attachment), dir, assignUniqueName).get(0);
+  }
+
+  // rejects oversized files by their declared sizes before fetching any bytes
+  // call this with all the attachments of a request if they are downloaded separately
+  public void checkSize(@NotNull Collection<? extends Message.@NotNull Attachment> attachments) {
+    for (var attachment : attachments) {
+      checkArgument(
+          attachment.getSize() <= MAX_DOWNLOAD_FILE_SIZE,
+          "Too large file: %s (%s bytes, limit %s bytes)",
+          attachment.getFileName(),
+          attachment.getSize(),
+          MAX_DOWNLOAD_FILE_SIZE);
+    }
+    var totalSize = attachments.stream().mapToLong(Message.Attachment::getSize).sum();
+    checkArgument(
+        totalSize <= MAX_DOWNLOAD_REQUEST_SIZE,
+        "Too large files in total: %s bytes, limit %s bytes",
+        totalSize,
+        MAX_DOWNLOAD_REQUEST_SIZE);
+  }
+
+  // the transfer is aborted if more bytes than the declared size are sent, or on the failure
+  private void copy(
+      @NotNull InputStream stream,
+      @NotNull Path path,
+      long declaredSize,
+      @NotNull Future<?> failure) {
+    try (stream;
+        var output = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW)) {
+      var buffer = new byte[BUFFER_SIZE];
+      long total = 0;
+      for (int read = stream.read(buffer); read != -1; read = stream.read(buffer)) {
+        checkState(!failure.isDone(), "Aborted as another download failed");
+        total += read;
+        checkArgument(
+            total <= declaredSize,
+            "The file is larger than its declared size: %s",
+            path.getFileName());
+        output.write(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    return attachment
-        .getProxy()
-        .downloadToPath(assignUniqueName ? FileUtil.generateUniquePathInDir(path) : path)
-        .join();
   }
 
   @Contract(pure = true)
   public @NotNull List<Message.@NotNull Attachment> getAttachmentsWithExtension(
-      @NotNull Message message, @NotNull String extension) {
+      @NotNull Message message, @NotNull String @NotNull ... extensions) {
     return message.getAttachments().stream()
-        .filter(attachment -> FileUtil.isExtension(attachment.getFileName(), extension))
+        .filter(attachment -> FileUtil.isExtension(attachment.getFileName(), extensions))
         .toList();
   }
+
+  // upload limit of the guild, or of DMs if guild is null
+  @Contract(pure = true)
+  public long getMaxFileSize(@Nullable Guild guild) {
+    return guild == null ? Message.MAX_FILE_SIZE : guild.getMaxFileSize();
+  }
 }
@@ -25,4 +25,9 @@ public class Envs {
   public @NotNull String getEnv(@NotNull String key) {
     return checkNotNull(DOTENV.get(key), "Environment variable %s is not set", key);
   }
+
+  @Contract(pure = true)
+  public @NotNull String getEnv(@NotNull String key, @NotNull String defaultValue) {
+    return DOTENV.get(key, defaultValue);
+  }
 }
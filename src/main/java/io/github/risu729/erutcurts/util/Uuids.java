@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util;
+
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+@UtilityClass
+public class Uuids {
+
+  private final int VERSION_5 = 5;
+
+  // name-based UUID with SHA-1, defined as version 5 in RFC 4122
+  @SuppressWarnings({"deprecation", "UnstableApiUsage"})
+  @Contract(pure = true)
+  public @NotNull UUID nameBased(@NotNull UUID namespace, @NotNull String name) {
+    // Hasher puts longs in little endian, but RFC 4122 requires the namespace in network order
+    var bytes =
+        Hashing.sha1()
+            .newHasher()
+            .putBytes(
+                ByteBuffer.allocate(Long.BYTES * 2)
+                    .putLong(namespace.getMostSignificantBits())
+                    .putLong(namespace.getLeastSignificantBits())
+                    .array())
+            .putString(name, StandardCharsets.UTF_8)
+            .hash()
+            .asBytes();
+    bytes[6] = (byte) ((bytes[6] & 0x0f) | (VERSION_5 << 4));
+    bytes[8] = (byte) ((bytes[8] & 0x3f) | 0x80); // IETF variant
+    var buffer = ByteBuffer.wrap(bytes, 0, Long.BYTES * 2);
+    return new UUID(buffer.getLong(), buffer.getLong());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util.file;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.LongSupplier;
+import org.jetbrains.annotations.NotNull;
+
+// limits the entries extracted from uploaded archives, so that zip bombs are rejected early
+// the size is the total of all the archives of a request, and its ratio to the compressed size
+// is checked against the archives read so far
+public final class ExtractionGuard {
+
+  private static final int MAX_ENTRIES = 4096;
+  private static final long MAX_TOTAL_SIZE = 512L * 1024 * 1024;
+  // structures of mostly air compress well, so the ratio is checked only for large archives
+  private static final long RATIO_CHECK_THRESHOLD = 16L * 1024 * 1024;
+  private static final int MAX_COMPRESSION_RATIO = 200;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final LongSupplier compressedSize;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int entries;
+  private long totalSize;
+
+  // compressedSize returns the size of the archives read so far
+  public ExtractionGuard(@NotNull LongSupplier compressedSize) {
+    this.compressedSize = compressedSize;
+  }
+
+  public void addEntries(int count) {
+    entries += count;
+    checkArgument(entries <= MAX_ENTRIES, "Too many entries: more than %s", MAX_ENTRIES);
+  }
+
+  // called before extracting, with the size declared by the archive, or as the data is read
+  public void addSize(long size) {
+    totalSize += size;
+    checkArgument(
+        totalSize <= MAX_TOTAL_SIZE,
+        "The extracted size exceeds the limit: %s bytes",
+        MAX_TOTAL_SIZE);
+    checkArgument(
+        totalSize <= RATIO_CHECK_THRESHOLD
+            || totalSize <= compressedSize.getAsLong() * MAX_COMPRESSION_RATIO,
+        "The compression ratio exceeds the limit: %s",
+        MAX_COMPRESSION_RATIO);
+  }
+
+  // for streams whose size is not known in advance
+  public void copy(@NotNull InputStream input, @NotNull OutputStream output) throws IOException {
+    for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+      addSize(read);
+      output.write(buffer, 0, read);
+    }
+  }
+}
@@ -17,11 +17,23 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import lombok.experimental.UtilityClass;
 import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.CompressionLevel;
 import org.jetbrains.annotations.CheckReturnValue;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
@@ -30,6 +42,13 @@ import org.jetbrains.annotations.NotNull;
 @UtilityClass
 public class FileUtil {
 
+  // used as the modification time of all entries in deterministic zip files
+  // written as the date and time of UTC, so that the files are the same on any host
+  public final Instant DETERMINISTIC_TIME = Instant.parse("2000-01-01T00:00:00Z");
+
+  @SuppressWarnings("HardcodedFileSeparator")
+  private final String ZIP_SEPARATOR = "/";
+
   public void deleteQuietly(@NotNull Path path) {
     if (Files.exists(path)) {
       try {
@@ -85,10 +104,17 @@ public class FileUtil {
     return MoreFiles.getNameWithoutExtension(Path.of(filename));
   }
 
-  @SuppressWarnings({"MethodCallInLoopCondition", "ReassignedVariable"})
   @CheckReturnValue
   public @NotNull Path generateUniquePathInDir(@NotNull Path path) {
-    if (!Files.exists(path)) {
+    return generateUniquePathInDir(path, Set.of());
+  }
+
+  // reserved paths are treated as existing, for files which are about to be created concurrently
+  @SuppressWarnings({"MethodCallInLoopCondition", "ReassignedVariable"})
+  @CheckReturnValue
+  public @NotNull Path generateUniquePathInDir(
+      @NotNull Path path, @NotNull Set<? extends @NotNull Path> reserved) {
+    if (!Files.exists(path) && !reserved.contains(path)) {
       return path;
     }
 
@@ -98,10 +124,10 @@ public class FileUtil {
 
     var generatedPath = path;
     var dir = path.getParent();
-    for (int i = 1; Files.exists(generatedPath); i++) {
+    for (int i = 1; Files.exists(generatedPath) || reserved.contains(generatedPath); i++) {
       generatedPath = dir.resolve(nameWithoutExtension + "_" + i + extension);
     }
-    return path;
+    return generatedPath;
   }
 
   @CheckReturnValue
@@ -135,11 +161,57 @@ public class FileUtil {
   @CheckReturnValue
   public Path zip(@NotNull Path target, @NotNull Path directory, boolean isInDirectory)
       throws IOException {
+    return zip(target, directory, isInDirectory, CompressionLevel.NORMAL);
+  }
+
+  @Contract("_, _, _, _ -> param1")
+  @CheckReturnValue
+  public Path zip(
+      @NotNull Path target,
+      @NotNull Path directory,
+      boolean isInDirectory,
+      @NotNull CompressionLevel compressionLevel)
+      throws IOException {
+    return zip(target, directory, isInDirectory, compressionLevel, false);
+  }
+
+  // if deterministic, entries are sorted by name and have a fixed modification time
+  // so that the same files always make a byte-identical zip file
+  @Contract("_, _, _, _, _ -> param1")
+  @CheckReturnValue
+  public Path zip(
+      @NotNull Path target,
+      @NotNull Path directory,
+      boolean isInDirectory,
+      @NotNull CompressionLevel compressionLevel,
+      boolean deterministic)
+      throws IOException {
     checkArgument(Files.notExists(target), "Target file already exists");
     checkArgument(Files.isDirectory(directory), "The directory is not a directory");
+    var parameters = new ZipParameters();
+    parameters.setCompressionLevel(compressionLevel);
     try (var zip = new ZipFile(target.toFile())) {
-      if (isInDirectory) {
-        zip.addFolder(directory.toFile());
+      if (deterministic) {
+        var base = directory.toAbsolutePath();
+        var root = isInDirectory ? base.getParent() : base;
+        List<Path> files;
+        try (var stream = Files.walk(base)) {
+          files =
+              stream
+                  .filter(Files::isRegularFile)
+                  .sorted(Comparator.comparing(file -> toZipEntryName(root.relativize(file))))
+                  .toList();
+        }
+        for (var file : files) {
+          var entryParameters = new ZipParameters(parameters);
+          entryParameters.setFileNameInZip(toZipEntryName(root.relativize(file)));
+          entryParameters.setLastModifiedFileTime(toZip4jTime(DETERMINISTIC_TIME));
+          try (var inputStream = Files.newInputStream(file)) {
+            zip.addStream(inputStream, entryParameters);
+          }
+        }
+      } else if (isInDirectory) {
+        zip.addFolder(directory.toFile(), parameters);
       } else {
         List<Path> list;
         try (var stream = Files.list(directory)) {
@@ -147,13 +219,138 @@ public class FileUtil {
         }
         for (var element : list) {
           if (Files.isDirectory(element)) {
-            zip.addFolder(element.toFile());
+            zip.addFolder(element.toFile(), parameters);
           } else {
-            zip.addFile(element.toFile());
+            zip.addFile(element.toFile(), parameters);
           }
         }
       }
     }
     return target;
   }
+
+  // rebuilds the zip with the files in the directory and the retained entries of the source
+  // files with the same contents as the source entries are copied without compressing again
+  @Contract("_, _, _, _, _, _ -> param2")
+  @CheckReturnValue
+  public Path patchZip(
+      @NotNull RawZipReader source,
+      @NotNull Path target,
+      @NotNull Path directory,
+      @NotNull Set<@NotNull String> retained,
+      @NotNull CompressionLevel compressionLevel,
+      boolean deterministic)
+      throws IOException {
+    checkArgument(Files.notExists(target), "Target file already exists");
+    checkArgument(Files.isDirectory(directory), "The directory is not a directory");
+    var root = directory.toAbsolutePath();
+    Map<String, Path> files = new HashMap<>();
+    try (var stream = Files.walk(root)) {
+      stream
+          .filter(Files::isRegularFile)
+          .forEach(file -> files.put(toZipEntryName(root.relativize(file)), file));
+    }
+    for (var name : retained) {
+      checkArgument(source.entry(name).isPresent(), "Entry not found: %s", name);
+      checkArgument(!files.containsKey(name), "Entry is both retained and replaced: %s", name);
+    }
+    var lastModified = deterministic ? DETERMINISTIC_TIME : Instant.now();
+    try (var zip = RawZipWriter.create(target, compressionLevel)) {
+      for (var name :
+          Stream.concat(files.keySet().stream(), retained.stream()).sorted().toList()) {
+        var entry = source.entry(name);
+        var file = files.get(name);
+        if (file == null) {
+          zip.copy(source, entry.orElseThrow());
+        } else if (entry.isPresent() && entry.orElseThrow().hasSameContents(file)) {
+          zip.copy(source, entry.orElseThrow());
+        } else {
+          zip.write(name, Files.readAllBytes(file), lastModified);
+        }
+      }
+    }
+    return target;
+  }
+
+  // writes the files in the directory and the entries copied raw from other zip files
+  // copied is keyed by the name in the target
+  @Contract("_, _, _, _, _ -> param1")
+  @CheckReturnValue
+  public Path mergeZip(
+      @NotNull Path target,
+      @NotNull Path directory,
+      @NotNull Map<@NotNull String, @NotNull CopiedEntry> copied,
+      @NotNull CompressionLevel compressionLevel,
+      boolean deterministic)
+      throws IOException {
+    checkArgument(Files.notExists(target), "Target file already exists");
+    checkArgument(Files.isDirectory(directory), "The directory is not a directory");
+    var root = directory.toAbsolutePath();
+    Map<String, Path> files = new HashMap<>();
+    try (var stream = Files.walk(root)) {
+      stream
+          .filter(Files::isRegularFile)
+          .forEach(file -> files.put(toZipEntryName(root.relativize(file)), file));
+    }
+    for (var name : copied.keySet()) {
+      checkArgument(!files.containsKey(name), "Entry is both copied and written: %s", name);
+    }
+    var lastModified = deterministic ? DETERMINISTIC_TIME : Instant.now();
+    try (var zip = RawZipWriter.create(target, compressionLevel)) {
+      for (var name :
+          Stream.concat(files.keySet().stream(), copied.keySet().stream()).sorted().toList()) {
+        var file = files.get(name);
+        if (file == null) {
+          var entry = copied.get(name);
+          zip.copy(entry.source(), entry.entry(), name);
+        } else {
+          zip.write(name, Files.readAllBytes(file), lastModified);
+        }
+      }
+    }
+    return target;
+  }
+
+  // bundles files which are already compressed, such as packs into an .mcaddon
+  // entries are named by the filenames, and written in the given order
+  @Contract("_, _, _ -> param1")
+  @CheckReturnValue
+  public Path storeZip(
+      @NotNull Path target, @NotNull List<@NotNull Path> files, boolean deterministic)
+      throws IOException {
+    checkArgument(Files.notExists(target), "Target file already exists");
+    var lastModified = deterministic ? DETERMINISTIC_TIME : Instant.now();
+    try (var zip = RawZipWriter.create(target, CompressionLevel.NO_COMPRESSION)) {
+      for (var file : files) {
+        zip.store(file.getFileName().toString(), file, lastModified);
+      }
+    }
+    return target;
+  }
+
+  @Contract(pure = true)
+  public @NotNull String toZipEntryName(@NotNull Path relativePath) {
+    return StreamSupport.stream(relativePath.spliterator(), false)
+        .map(Path::toString)
+        .collect(Collectors.joining(ZIP_SEPARATOR));
+  }
+
+  @Contract(pure = true)
+  public @NotNull Path fromZipEntryName(@NotNull String name) {
+    return Path.of("", name.split(ZIP_SEPARATOR));
+  }
+
+  // zip4j converts the time into the default time zone, so it is shifted by the offset to write
+  // the date and time of UTC, as RawZipWriter does
+  @Contract(pure = true)
+  private long toZip4jTime(@NotNull Instant instant) {
+    return instant
+        .atZone(ZoneOffset.UTC)
+        .toLocalDateTime()
+        .atZone(ZoneId.systemDefault())
+        .toInstant()
+        .toEpochMilli();
+  }
+
+  public record CopiedEntry(@NotNull RawZipReader source, RawZipReader.@NotNull Entry entry) {}
 }
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util.file;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.With;
+import lombok.experimental.Accessors;
+import lombok.experimental.FieldDefaults;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Unmodifiable;
+
+// reads the central directory of a zip file so that its entries can be copied without inflating
+// zip64 and encrypted entries are not supported, generated packs never need them
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Accessors(fluent = true)
+public final class RawZipReader implements Closeable {
+
+  static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  static final int LOCAL_HEADER_SIZE = 30;
+  static final int CENTRAL_HEADER_SIZE = 46;
+  static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  static final int METHOD_STORED = 0;
+  static final int METHOD_DEFLATED = 8;
+
+  private static final int MAX_COMMENT_LENGTH = 0xffff;
+  private static final int FLAG_ENCRYPTED = 0x1;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  FileChannel channel;
+  @Getter @Unmodifiable @NotNull Map<@NotNull String, @NotNull Entry> entries;
+
+  private RawZipReader(@NotNull FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.entries = Collections.unmodifiableMap(readCentralDirectory());
+  }
+
+  @CheckReturnValue
+  public static @NotNull RawZipReader open(@NotNull Path path) throws IOException {
+    var channel = FileChannel.open(path);
+    try {
+      return new RawZipReader(channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Contract(pure = true)
+  public @NotNull Optional<Entry> entry(@NotNull String name) {
+    return Optional.ofNullable(entries.get(name));
+  }
+
+  // only for trusted zip files such as generated packs, uploaded ones should be read with a guard
+  @CheckReturnValue
+  public byte @NotNull [] read(@NotNull Entry entry) throws IOException {
+    var output = new ByteArrayOutputStream((int) Math.min(entry.size(), BUFFER_SIZE));
+    inflate(entry, output);
+    return output.toByteArray();
+  }
+
+  // the declared size is checked by the guard before inflating, and the data cannot exceed it
+  @CheckReturnValue
+  public byte @NotNull [] read(@NotNull Entry entry, @NotNull ExtractionGuard guard)
+      throws IOException {
+    guard.addSize(entry.size());
+    return read(entry);
+  }
+
+  public void extract(@NotNull Entry entry, @NotNull Path target, @NotNull ExtractionGuard guard)
+      throws IOException {
+    guard.addSize(entry.size());
+    try (var output = Files.newOutputStream(target)) {
+      inflate(entry, output);
+    }
+  }
+
+  @CheckReturnValue
+  public @NotNull String readString(@NotNull String name) throws IOException {
+    var entry = entry(name).orElseThrow(() -> new ZipException("Entry not found: " + name));
+    return new String(read(entry), StandardCharsets.UTF_8);
+  }
+
+  // copies the compressed data of the entry as is
+  void transferData(@NotNull Entry entry, @NotNull WritableByteChannel target) throws IOException {
+    var position = dataOffset(entry);
+    var remaining = entry.compressedSize();
+    while (remaining > 0) {
+      var transferred = channel.transferTo(position, remaining, target);
+      if (transferred <= 0) {
+        throw new ZipException("Unexpected end of file: " + entry.name());
+      }
+      position += transferred;
+      remaining -= transferred;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // the compressed data is read in chunks, and inflating stops at the declared size
+  private void inflate(@NotNull Entry entry, @NotNull OutputStream output) throws IOException {
+    var position = dataOffset(entry);
+    var remaining = entry.compressedSize();
+    var input = ByteBuffer.allocate(BUFFER_SIZE);
+    if (entry.method() == METHOD_STORED) {
+      if (entry.compressedSize() != entry.size()) {
+        throw new ZipException("Invalid size of a stored entry: " + entry.name());
+      }
+      while (remaining > 0) {
+        var length = (int) Math.min(BUFFER_SIZE, remaining);
+        input.clear().limit(length);
+        readFully(input, position);
+        output.write(input.array(), 0, length);
+        position += length;
+        remaining -= length;
+      }
+      return;
+    }
+    var inflater = new Inflater(true);
+    try {
+      var buffer = new byte[BUFFER_SIZE];
+      long size = 0;
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          if (remaining == 0) {
+            throw new ZipException("Truncated entry: " + entry.name());
+          }
+          var length = (int) Math.min(BUFFER_SIZE, remaining);
+          input.clear().limit(length);
+          readFully(input, position);
+          inflater.setInput(input.array(), 0, length);
+          position += length;
+          remaining -= length;
+        }
+        // one more byte than declared is requested, to detect data beyond the declared size
+        var length =
+            inflater.inflate(buffer, 0, (int) Math.min(buffer.length, entry.size() - size + 1));
+        size += length;
+        if (size > entry.size()) {
+          throw new ZipException("Entry exceeds its declared size: " + entry.name());
+        }
+        if (length == 0 && inflater.needsDictionary()) {
+          throw new ZipException("Invalid entry: " + entry.name());
+        }
+        output.write(buffer, 0, length);
+      }
+      if (size != entry.size()) {
+        throw new ZipException("Entry is shorter than its declared size: " + entry.name());
+      }
+    } catch (DataFormatException e) {
+      throw new ZipException("Invalid entry: " + entry.name());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private long dataOffset(@NotNull Entry entry) throws IOException {
+    var header = littleEndian(LOCAL_HEADER_SIZE);
+    readFully(header, entry.localHeaderOffset());
+    if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Invalid local header: " + entry.name());
+    }
+    // the lengths in the local header may differ from the central directory
+    return entry.localHeaderOffset()
+        + LOCAL_HEADER_SIZE
+        + Short.toUnsignedInt(header.getShort(26))
+        + Short.toUnsignedInt(header.getShort(28));
+  }
+
+  private @NotNull Map<String, Entry> readCentralDirectory() throws IOException {
+    var size = channel.size();
+    var tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH);
+    var tail = littleEndian(tailSize);
+    readFully(tail, size - tailSize);
+    var end = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if (end < 0) {
+      throw new ZipException("End of central directory not found");
+    }
+    var entryCount = Short.toUnsignedInt(tail.getShort(end + 10));
+    var directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+    var directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+    if (entryCount == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL) {
+      throw new ZipException("Zip64 is not supported");
+    }
+
+    var directory = littleEndian(Math.toIntExact(directorySize));
+    readFully(directory, directoryOffset);
+    Map<String, Entry> result = new LinkedHashMap<>();
+    var position = 0;
+    for (int i = 0; i < entryCount; i++) {
+      if (directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Invalid central directory");
+      }
+      var flags = Short.toUnsignedInt(directory.getShort(position + 8));
+      if ((flags & FLAG_ENCRYPTED) != 0) {
+        throw new ZipException("Encrypted entries are not supported");
+      }
+      var nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+      var extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+      var commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+      var nameBytes = new byte[nameLength];
+      directory.get(position + CENTRAL_HEADER_SIZE, nameBytes);
+      var entry =
+          new Entry(
+              new String(nameBytes, StandardCharsets.UTF_8),
+              Short.toUnsignedInt(directory.getShort(position + 10)),
+              directory.getInt(position + 12),
+              Integer.toUnsignedLong(directory.getInt(position + 16)),
+              Integer.toUnsignedLong(directory.getInt(position + 20)),
+              Integer.toUnsignedLong(directory.getInt(position + 24)),
+              Integer.toUnsignedLong(directory.getInt(position + 42)));
+      if (entry.method() != METHOD_STORED && entry.method() != METHOD_DEFLATED) {
+        throw new ZipException("Unsupported compression method: " + entry.method());
+      }
+      result.put(entry.name(), entry);
+      position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return result;
+  }
+
+  private void readFully(@NotNull ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new ZipException("Unexpected end of file");
+      }
+    }
+    buffer.flip();
+  }
+
+  @Contract(pure = true)
+  static @NotNull ByteBuffer littleEndian(int capacity) {
+    return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  // dosDateTime is the date in the upper 16 bits and the time in the lower 16 bits
+  @With
+  public record Entry(
+      @NotNull String name,
+      int method,
+      int dosDateTime,
+      long crc,
+      long compressedSize,
+      long size,
+      long localHeaderOffset) {
+
+    // whether the entry has the same contents as the file, compared by CRC-32 and size
+    @CheckReturnValue
+    public boolean hasSameContents(@NotNull Path file) throws IOException {
+      if (Files.size(file) != size) {
+        return false;
+      }
+      var crc32 = new CRC32();
+      crc32.update(Files.readAllBytes(file));
+      return crc32.getValue() == crc;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util.file;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.NotNull;
+
+// writes a zip file entry by entry, either compressing new data or copying entries of another zip
+// copied entries keep their compressed data, so unchanged files are not compressed again
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public final class RawZipWriter implements Closeable {
+
+  private static final int VERSION = 20;
+  private static final int FLAG_UTF8 = 0x800;
+  private static final int MAX_ENTRIES = 0xffff;
+
+  FileChannel channel;
+  @NotNull CompressionLevel compressionLevel;
+  List<RawZipReader.Entry> written = new ArrayList<>();
+  Set<String> names = new HashSet<>();
+
+  private RawZipWriter(@NotNull FileChannel channel, @NotNull CompressionLevel compressionLevel) {
+    this.channel = channel;
+    this.compressionLevel = compressionLevel;
+  }
+
+  @CheckReturnValue
+  public static @NotNull RawZipWriter create(
+      @NotNull Path target, @NotNull CompressionLevel compressionLevel) throws IOException {
+    return new RawZipWriter(
+        FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+        compressionLevel);
+  }
+
+  public void copy(@NotNull RawZipReader source, @NotNull RawZipReader.Entry entry)
+      throws IOException {
+    copy(source, entry, entry.name());
+  }
+
+  public void copy(
+      @NotNull RawZipReader source, @NotNull RawZipReader.Entry entry, @NotNull String name)
+      throws IOException {
+    var copied = entry.withName(name).withLocalHeaderOffset(channel.position());
+    writeLocalHeader(copied);
+    source.transferData(entry, channel);
+    written.add(copied);
+  }
+
+  public void write(@NotNull String name, byte @NotNull [] data, @NotNull Instant lastModified)
+      throws IOException {
+    var crc32 = new CRC32();
+    crc32.update(data);
+    var compressed = deflate(data);
+    // small files may become larger by compression
+    var isStored = compressed.length >= data.length;
+    var entry =
+        new RawZipReader.Entry(
+            name,
+            isStored ? RawZipReader.METHOD_STORED : RawZipReader.METHOD_DEFLATED,
+            toDosDateTime(lastModified),
+            crc32.getValue(),
+            isStored ? data.length : compressed.length,
+            data.length,
+            channel.position());
+    writeLocalHeader(entry);
+    writeFully(ByteBuffer.wrap(isStored ? data : compressed));
+    written.add(entry);
+  }
+
+  // stores the file without compression, for files which are already compressed
+  // the file is read twice, for CRC-32 and for the data, instead of being loaded into memory
+  public void store(@NotNull String name, @NotNull Path file, @NotNull Instant lastModified)
+      throws IOException {
+    var crc32 = new CRC32();
+    try (var input = Files.newInputStream(file)) {
+      var buffer = new byte[8192];
+      for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+        crc32.update(buffer, 0, read);
+      }
+    }
+    var size = Files.size(file);
+    var entry =
+        new RawZipReader.Entry(
+            name,
+            RawZipReader.METHOD_STORED,
+            toDosDateTime(lastModified),
+            crc32.getValue(),
+            size,
+            size,
+            channel.position());
+    writeLocalHeader(entry);
+    try (var source = FileChannel.open(file, StandardOpenOption.READ)) {
+      for (long position = 0; position < size; ) {
+        position += source.transferTo(position, size - position, channel);
+      }
+    }
+    written.add(entry);
+  }
+
+  // writes the central directory, the file is invalid until this is called
+  @Override
+  public void close() throws IOException {
+    try (channel) {
+      checkState(written.size() <= MAX_ENTRIES, "Too many entries for a zip without zip64");
+      var directoryOffset = channel.position();
+      for (var entry : written) {
+        var name = entry.name().getBytes(StandardCharsets.UTF_8);
+        var header = RawZipReader.littleEndian(RawZipReader.CENTRAL_HEADER_SIZE + name.length);
+        header
+            .putInt(RawZipReader.CENTRAL_HEADER_SIGNATURE)
+            .putShort((short) VERSION)
+            .putShort((short) VERSION)
+            .putShort((short) FLAG_UTF8)
+            .putShort((short) entry.method())
+            .putInt(entry.dosDateTime())
+            .putInt((int) entry.crc())
+            .putInt(toUnsignedInt(entry.compressedSize()))
+            .putInt(toUnsignedInt(entry.size()))
+            .putShort((short) name.length)
+            .putShort((short) 0) // extra field length
+            .putShort((short) 0) // comment length
+            .putShort((short) 0) // disk number
+            .putShort((short) 0) // internal attributes
+            .putInt(0) // external attributes
+            .putInt(toUnsignedInt(entry.localHeaderOffset()))
+            .put(name);
+        writeFully(header.flip());
+      }
+      var directorySize = channel.position() - directoryOffset;
+      var end = RawZipReader.littleEndian(RawZipReader.END_OF_CENTRAL_DIRECTORY_SIZE);
+      end.putInt(RawZipReader.END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+          .putShort((short) 0) // disk number
+          .putShort((short) 0) // disk of the central directory
+          .putShort((short) written.size())
+          .putShort((short) written.size())
+          .putInt(toUnsignedInt(directorySize))
+          .putInt(toUnsignedInt(directoryOffset))
+          .putShort((short) 0); // comment length
+      writeFully(end.flip());
+    }
+  }
+
+  // the data descriptor flag is not set, sizes and CRC-32 are always in the local header
+  private void writeLocalHeader(@NotNull RawZipReader.Entry entry) throws IOException {
+    checkArgument(names.add(entry.name()), "Duplicate entry: %s", entry.name());
+    var name = entry.name().getBytes(StandardCharsets.UTF_8);
+    var header = RawZipReader.littleEndian(RawZipReader.LOCAL_HEADER_SIZE + name.length);
+    header
+        .putInt(RawZipReader.LOCAL_HEADER_SIGNATURE)
+        .putShort((short) VERSION)
+        .putShort((short) FLAG_UTF8)
+        .putShort((short) entry.method())
+        .putInt(entry.dosDateTime())
+        .putInt((int) entry.crc())
+        .putInt(toUnsignedInt(entry.compressedSize()))
+        .putInt(toUnsignedInt(entry.size()))
+        .putShort((short) name.length)
+        .putShort((short) 0) // extra field length
+        .put(name);
+    writeFully(header.flip());
+  }
+
+  private byte @NotNull [] deflate(byte @NotNull [] data) {
+    var deflater = new Deflater(compressionLevel.getLevel(), true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      var output = new ByteArrayOutputStream();
+      var buffer = new byte[8192];
+      while (!deflater.finished()) {
+        output.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private void writeFully(@NotNull ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static int toUnsignedInt(long value) {
+    checkState(value <= 0xffffffffL, "Too large for a zip without zip64");
+    return (int) value;
+  }
+
+  // zip timestamps have no time zone, UTC is used so that the same file is made on any host
+  private static int toDosDateTime(@NotNull Instant instant) {
+    var dateTime = instant.atZone(ZoneOffset.UTC).toLocalDateTime();
+    var date =
+        ((dateTime.getYear() - 1980) << 9)
+            | (dateTime.getMonthValue() << 5)
+            | dateTime.getDayOfMonth();
+    var time =
+        (dateTime.getHour() << 11) | (dateTime.getMinute() << 5) | (dateTime.getSecond() >> 1);
+    return (date << 16) | time;
+  }
+}
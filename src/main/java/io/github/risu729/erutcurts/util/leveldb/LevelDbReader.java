@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util.leveldb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.CheckReturnValue;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+// reads entries of a LevelDB database written by Minecraft Bedrock, without modifying it
+// tables are memory-mapped and only the blocks which may contain the requested keys are inflated
+@UtilityClass
+public class LevelDbReader {
+
+  private final Comparator<byte[]> KEY_COMPARATOR = LevelDbWriter.KEY_COMPARATOR;
+
+  private final byte DELETION_TYPE = 0;
+  private final byte NO_COMPRESSION = 0;
+  private final byte ZLIB_COMPRESSION = 2;
+  private final int BLOCK_TRAILER_SIZE = 5;
+
+  // the zero type is the padding of preallocated log files
+  private final byte LOG_ZERO = 0;
+  private final byte LOG_FIRST = 2;
+  private final byte LOG_MIDDLE = 3;
+  private final byte LOG_LAST = 4;
+  private final int WRITE_BATCH_HEADER_SIZE = Long.BYTES + Integer.BYTES;
+
+  private final int EDIT_COMPACT_POINTER = 5;
+  private final int EDIT_DELETED_FILE = 6;
+  private final int EDIT_PREV_LOG_NUMBER = 9;
+
+  private final Pattern LOG_FILENAME_PATTERN = Pattern.compile("(\\d+)\\.log");
+
+  // returns the latest values of the keys which start with the prefix, sorted by KEY_COMPARATOR
+  @CheckReturnValue
+  public @NotNull SortedMap<byte[], byte[]> scan(@NotNull Path dir, byte @NotNull [] prefix)
+      throws IOException {
+    var manifestName = Files.readString(dir.resolve("CURRENT"), StandardCharsets.US_ASCII).strip();
+    var version = readManifest(dir.resolve(manifestName));
+
+    SortedMap<byte[], Value> values = new TreeMap<>(KEY_COMPARATOR);
+    for (var file : version.files().entrySet()) {
+      if (file.getValue().mayContain(prefix)) {
+        readTable(findTable(dir, file.getKey()), prefix, values);
+      }
+    }
+    // logs contain the latest writes which are not compacted into tables yet
+    List<Long> logNumbers;
+    try (var stream = Files.list(dir)) {
+      logNumbers =
+          stream
+              .map(path -> LOG_FILENAME_PATTERN.matcher(path.getFileName().toString()))
+              .filter(Matcher::matches)
+              .map(matcher -> Long.parseLong(matcher.group(1)))
+              .filter(
+                  number ->
+                      number >= version.logNumber()
+                          || (version.prevLogNumber() != 0 && number == version.prevLogNumber()))
+              .sorted()
+              .toList();
+    }
+    for (var number : logNumbers) {
+      readLog(
+          map(dir.resolve(LevelDbWriter.fileName(number, "log"))),
+          batch -> readWriteBatch(batch, prefix, values));
+    }
+
+    SortedMap<byte[], byte[]> result = new TreeMap<>(KEY_COMPARATOR);
+    values.forEach(
+        (key, value) -> {
+          if (value.data() != null) {
+            result.put(key, value.data());
+          }
+        });
+    return result;
+  }
+
+  @CheckReturnValue
+  private @NotNull Version readManifest(@NotNull Path manifest) throws IOException {
+    Map<Long, KeyRange> files = new HashMap<>();
+    var numbers = new long[2]; // the log number and the previous one, set in the lambda
+    readLog(
+        map(manifest),
+        record -> {
+          var edit = ByteBuffer.wrap(record);
+          while (edit.hasRemaining()) {
+            var tag = (int) getVarint(edit);
+            switch (tag) {
+              case LevelDbWriter.EDIT_COMPARATOR -> {
+                var comparator = new String(getLengthPrefixed(edit), StandardCharsets.US_ASCII);
+                if (!comparator.equals(LevelDbWriter.COMPARATOR_NAME)) {
+                  throw new IOException("Unsupported comparator: " + comparator);
+                }
+              }
+              case LevelDbWriter.EDIT_LOG_NUMBER -> numbers[0] = getVarint(edit);
+              case EDIT_PREV_LOG_NUMBER -> numbers[1] = getVarint(edit);
+              case LevelDbWriter.EDIT_NEXT_FILE_NUMBER, LevelDbWriter.EDIT_LAST_SEQUENCE ->
+                  getVarint(edit);
+              case EDIT_COMPACT_POINTER -> {
+                getVarint(edit); // level
+                getLengthPrefixed(edit);
+              }
+              case EDIT_DELETED_FILE -> {
+                getVarint(edit); // level
+                files.remove(getVarint(edit));
+              }
+              case LevelDbWriter.EDIT_NEW_FILE -> {
+                getVarint(edit); // level
+                var number = getVarint(edit);
+                getVarint(edit); // file size
+                files.put(
+                    number,
+                    new KeyRange(
+                        userKey(getLengthPrefixed(edit)), userKey(getLengthPrefixed(edit))));
+              }
+              default -> throw new IOException("Unknown tag in the manifest: " + tag);
+            }
+          }
+        });
+    return new Version(numbers[0], numbers[1], files);
+  }
+
+  // tables are named .ldb, or .sst by older versions of LevelDB
+  @Contract(pure = true)
+  private @NotNull Path findTable(@NotNull Path dir, long number) throws IOException {
+    var table = dir.resolve(LevelDbWriter.fileName(number, "ldb"));
+    if (Files.exists(table)) {
+      return table;
+    }
+    var legacyTable = dir.resolve(LevelDbWriter.fileName(number, "sst"));
+    if (Files.exists(legacyTable)) {
+      return legacyTable;
+    }
+    throw new IOException("Table not found: " + table);
+  }
+
+  private void readTable(
+      @NotNull Path path, byte @NotNull [] prefix, @NotNull Map<byte[], Value> values)
+      throws IOException {
+    var table = map(path);
+    var footerOffset = table.limit() - LevelDbWriter.FOOTER_HANDLES_LENGTH - Long.BYTES;
+    if (footerOffset < 0
+        || table.getLong(table.limit() - Long.BYTES) != LevelDbWriter.TABLE_MAGIC) {
+      throw new IOException("Not a table: " + path);
+    }
+    var footer = table.slice(footerOffset, LevelDbWriter.FOOTER_HANDLES_LENGTH);
+    BlockHandle.read(footer); // meta index, which is not used
+    var index = readBlock(table, BlockHandle.read(footer));
+
+    // the key of each index entry is at least the last key of the block
+    // and less than the first key of the next block
+    byte[] previousSeparator = null;
+    for (var indexEntry : readEntries(index)) {
+      if (previousSeparator != null
+          && KEY_COMPARATOR.compare(previousSeparator, prefix) > 0
+          && !startsWith(previousSeparator, prefix)) {
+        break;
+      }
+      var separator = userKey(indexEntry.key());
+      previousSeparator = separator;
+      if (KEY_COMPARATOR.compare(separator, prefix) < 0) {
+        continue;
+      }
+      var handle = BlockHandle.read(ByteBuffer.wrap(indexEntry.value()));
+      for (var entry : readEntries(readBlock(table, handle))) {
+        var key = entry.key();
+        var userKey = userKey(key);
+        if (startsWith(userKey, prefix)) {
+          var trailer = littleEndian(key, key.length - Long.BYTES).getLong();
+          put(
+              values,
+              userKey,
+              new Value(
+                  trailer >>> 8,
+                  (byte) trailer == DELETION_TYPE ? null : entry.value()));
+        }
+      }
+    }
+  }
+
+  // values of other keys are skipped without being copied
+  private void readWriteBatch(
+      byte @NotNull [] batch, byte @NotNull [] prefix, @NotNull Map<byte[], Value> values)
+      throws IOException {
+    if (batch.length < WRITE_BATCH_HEADER_SIZE) {
+      throw new IOException("Invalid write batch");
+    }
+    var buffer = littleEndian(batch, 0);
+    var sequence = buffer.getLong();
+    var count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      var type = buffer.get();
+      var key = getLengthPrefixed(buffer);
+      if (!startsWith(key, prefix)) {
+        if (type != DELETION_TYPE) {
+          var length = (int) getVarint(buffer);
+          buffer.position(buffer.position() + length);
+        }
+        continue;
+      }
+      var data = type == DELETION_TYPE ? null : getLengthPrefixed(buffer);
+      put(values, key, new Value(sequence + i, data));
+    }
+  }
+
+  // the newer one is kept
+  private void put(
+      @NotNull Map<byte[], Value> values, byte @NotNull [] key, @NotNull Value value) {
+    values.merge(
+        key, value, (current, added) -> added.sequence() > current.sequence() ? added : current);
+  }
+
+  // passes the records of a log file in order as they are read, so that only one record is kept
+  // in memory at a time, and a corrupted or truncated tail is ignored
+  private void readLog(@NotNull ByteBuffer log, @NotNull RecordConsumer consumer)
+      throws IOException {
+    ByteArrayOutputStream fragments = null;
+    var position = 0;
+    while (position + LevelDbWriter.LOG_HEADER_SIZE <= log.limit()) {
+      var blockRemaining =
+          LevelDbWriter.LOG_BLOCK_SIZE - position % LevelDbWriter.LOG_BLOCK_SIZE;
+      var length = Short.toUnsignedInt(log.getShort(position + 4));
+      var type = log.get(position + 6);
+      // the rest of a block too small for a header is filled with zeros
+      if (blockRemaining < LevelDbWriter.LOG_HEADER_SIZE || type == LOG_ZERO) {
+        position += blockRemaining;
+        continue;
+      }
+      var dataOffset = position + LevelDbWriter.LOG_HEADER_SIZE;
+      if (dataOffset + length > log.limit()) {
+        break;
+      }
+      var data = new byte[length];
+      log.get(dataOffset, data);
+      var crc = new CRC32C();
+      crc.update(type);
+      crc.update(data);
+      if (log.getInt(position) != LevelDbWriter.mask(crc)) {
+        break;
+      }
+      if (type == LevelDbWriter.LOG_FULL) {
+        consumer.accept(data);
+        fragments = null;
+      } else if (type == LOG_FIRST) {
+        fragments = new ByteArrayOutputStream();
+        fragments.writeBytes(data);
+      } else if ((type == LOG_MIDDLE || type == LOG_LAST) && fragments != null) {
+        fragments.writeBytes(data);
+        if (type == LOG_LAST) {
+          consumer.accept(fragments.toByteArray());
+          fragments = null;
+        }
+      }
+      position = dataOffset + length;
+    }
+  }
+
+  @CheckReturnValue
+  private byte @NotNull [] readBlock(@NotNull ByteBuffer table, @NotNull BlockHandle handle)
+      throws IOException {
+    var offset = Math.toIntExact(handle.offset());
+    var size = Math.toIntExact(handle.size());
+    if (offset + size + BLOCK_TRAILER_SIZE > table.limit()) {
+      throw new IOException("Block out of the table");
+    }
+    var data = new byte[size];
+    table.get(offset, data);
+    var type = table.get(offset + size);
+    return switch (type) {
+      case NO_COMPRESSION -> data;
+      case ZLIB_COMPRESSION -> inflate(data, false);
+      case LevelDbWriter.ZLIB_RAW_COMPRESSION -> inflate(data, true);
+      default -> throw new IOException("Unsupported compression type: " + type);
+    };
+  }
+
+  // keys are prefix-compressed against the previous key
+  @CheckReturnValue
+  private @NotNull List<@NotNull BlockEntry> readEntries(byte @NotNull [] block) {
+    var buffer = littleEndian(block, 0);
+    var restartCount = buffer.getInt(block.length - Integer.BYTES);
+    var end = block.length - Integer.BYTES * (restartCount + 1);
+    List<BlockEntry> entries = new ArrayList<>();
+    var key = new byte[0];
+    while (buffer.position() < end) {
+      var shared = (int) getVarint(buffer);
+      var nonShared = (int) getVarint(buffer);
+      var valueLength = (int) getVarint(buffer);
+      key = Arrays.copyOf(key, shared + nonShared);
+      buffer.get(key, shared, nonShared);
+      var value = new byte[valueLength];
+      buffer.get(value);
+      entries.add(new BlockEntry(key, value));
+    }
+    return entries;
+  }
+
+  private byte @NotNull [] inflate(byte @NotNull [] data, boolean nowrap) throws IOException {
+    var inflater = new Inflater(nowrap);
+    try {
+      inflater.setInput(data);
+      var output = new ByteArrayOutputStream(data.length * 4);
+      var buffer = new byte[8192];
+      while (!inflater.finished()) {
+        var length = inflater.inflate(buffer);
+        if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated block");
+        }
+        output.write(buffer, 0, length);
+      }
+      return output.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  // the mapping stays valid after the channel is closed
+  @CheckReturnValue
+  private @NotNull MappedByteBuffer map(@NotNull Path path) throws IOException {
+    try (var channel = FileChannel.open(path)) {
+      var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      return buffer;
+    }
+  }
+
+  @Contract(pure = true)
+  private byte @NotNull [] userKey(byte @NotNull [] internalKey) {
+    return Arrays.copyOf(internalKey, internalKey.length - Long.BYTES);
+  }
+
+  @Contract(pure = true)
+  private boolean startsWith(byte @NotNull [] key, byte @NotNull [] prefix) {
+    return key.length >= prefix.length
+        && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+  }
+
+  @Contract(pure = true)
+  private @NotNull ByteBuffer littleEndian(byte @NotNull [] bytes, int offset) {
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).position(offset);
+  }
+
+  private long getVarint(@NotNull ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      var b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  private byte @NotNull [] getLengthPrefixed(@NotNull ByteBuffer buffer) {
+    var bytes = new byte[(int) getVarint(buffer)];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  @FunctionalInterface
+  private interface RecordConsumer {
+
+    void accept(byte @NotNull [] record) throws IOException;
+  }
+
+  private record Version(
+      long logNumber, long prevLogNumber, @NotNull Map<@NotNull Long, @NotNull KeyRange> files) {}
+
+  // user keys of the smallest and the largest entries in a table
+  private record KeyRange(byte @NotNull [] smallest, byte @NotNull [] largest) {
+
+    @Contract(pure = true)
+    private boolean mayContain(byte @NotNull [] prefix) {
+      return KEY_COMPARATOR.compare(largest, prefix) >= 0
+          && (KEY_COMPARATOR.compare(smallest, prefix) <= 0 || startsWith(smallest, prefix));
+    }
+  }
+
+  private record BlockHandle(long offset, long size) {
+
+    private static @NotNull BlockHandle read(@NotNull ByteBuffer buffer) {
+      return new BlockHandle(getVarint(buffer), getVarint(buffer));
+    }
+  }
+
+  private record BlockEntry(byte @NotNull [] key, byte @NotNull [] value) {}
+
+  // data is null if the key is deleted
+  private record Value(long sequence, byte @Nullable [] data) {}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util.leveldb;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.primitives.UnsignedBytes;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import lombok.experimental.UtilityClass;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+// writes a new LevelDB database which contains one table, in the format Minecraft Bedrock reads
+// based on the table and log formats documented in google/leveldb
+@UtilityClass
+public class LevelDbWriter {
+
+  public final Comparator<byte[]> KEY_COMPARATOR = UnsignedBytes.lexicographicalComparator();
+
+  final String COMPARATOR_NAME = "leveldb.BytewiseComparator";
+  private final long MANIFEST_NUMBER = 2;
+  private final long LOG_NUMBER = 3;
+  private final long TABLE_NUMBER = 4;
+  private final long NEXT_FILE_NUMBER = 5;
+  private final long SEQUENCE = 1;
+
+  private final int BLOCK_SIZE = 4 * 1024;
+  private final int RESTART_INTERVAL = 16;
+  final byte VALUE_TYPE = 1;
+  // zlib without the header, which Minecraft Bedrock uses
+  final byte ZLIB_RAW_COMPRESSION = 4;
+  final long TABLE_MAGIC = 0xdb4775248b80fb57L;
+  final int FOOTER_HANDLES_LENGTH = 40;
+
+  final int LOG_BLOCK_SIZE = 32 * 1024;
+  final int LOG_HEADER_SIZE = 7;
+  final byte LOG_FULL = 1;
+
+  final int EDIT_COMPARATOR = 1;
+  final int EDIT_LOG_NUMBER = 2;
+  final int EDIT_NEXT_FILE_NUMBER = 3;
+  final int EDIT_LAST_SEQUENCE = 4;
+  final int EDIT_NEW_FILE = 7;
+
+  private final int CRC_MASK_DELTA = 0xa282ead8;
+
+  // entries must be sorted by KEY_COMPARATOR
+  public void write(@NotNull Path dir, @NotNull SortedMap<byte[], byte[]> entries)
+      throws IOException {
+    checkArgument(!entries.isEmpty(), "entries must not be empty");
+    checkArgument(
+        KEY_COMPARATOR.equals(entries.comparator()), "entries must be sorted by KEY_COMPARATOR");
+    Files.createDirectories(dir);
+
+    var table = buildTable(entries);
+    Files.write(dir.resolve(fileName(TABLE_NUMBER, "ldb")), table);
+    Files.write(dir.resolve(fileName(LOG_NUMBER, "log")), new byte[0]);
+
+    var edit = new ByteArrayOutputStream();
+    putVarint(edit, EDIT_COMPARATOR);
+    putLengthPrefixed(edit, COMPARATOR_NAME.getBytes(StandardCharsets.US_ASCII));
+    putVarint(edit, EDIT_LOG_NUMBER);
+    putVarint(edit, LOG_NUMBER);
+    putVarint(edit, EDIT_NEXT_FILE_NUMBER);
+    putVarint(edit, NEXT_FILE_NUMBER);
+    putVarint(edit, EDIT_LAST_SEQUENCE);
+    putVarint(edit, SEQUENCE);
+    putVarint(edit, EDIT_NEW_FILE);
+    putVarint(edit, 0); // level
+    putVarint(edit, TABLE_NUMBER);
+    putVarint(edit, table.length);
+    putLengthPrefixed(edit, internalKey(entries.firstKey()));
+    putLengthPrefixed(edit, internalKey(entries.lastKey()));
+    var manifestName = "MANIFEST-%06d".formatted(MANIFEST_NUMBER);
+    Files.write(dir.resolve(manifestName), logRecord(edit.toByteArray()));
+    Files.writeString(dir.resolve("CURRENT"), manifestName + "\n", StandardCharsets.US_ASCII);
+  }
+
+  private byte @NotNull [] buildTable(@NotNull SortedMap<byte[], byte[]> entries) {
+    var table = new ByteArrayOutputStream();
+    var index = new BlockBuilder();
+    var block = new BlockBuilder();
+    byte[] lastKey = null;
+    for (var entry : entries.entrySet()) {
+      var key = internalKey(entry.getKey());
+      block.add(key, entry.getValue());
+      lastKey = key;
+      if (block.size() >= BLOCK_SIZE) {
+        // the last key of the block is a valid separator, though not the shortest one
+        index.add(lastKey, writeBlock(table, block.finish(), true));
+        block = new BlockBuilder();
+      }
+    }
+    if (!block.isEmpty()) {
+      index.add(lastKey, writeBlock(table, block.finish(), true));
+    }
+    var metaIndexHandle = writeBlock(table, new BlockBuilder().finish(), false);
+    var indexHandle = writeBlock(table, index.finish(), false);
+
+    var handles = new ByteArrayOutputStream();
+    handles.writeBytes(metaIndexHandle);
+    handles.writeBytes(indexHandle);
+    var footer = littleEndian(FOOTER_HANDLES_LENGTH + Long.BYTES);
+    footer.put(handles.toByteArray());
+    footer.putLong(FOOTER_HANDLES_LENGTH, TABLE_MAGIC);
+    table.writeBytes(footer.array());
+    return table.toByteArray();
+  }
+
+  // returns the encoded handle of the block
+  private byte @NotNull [] writeBlock(
+      @NotNull ByteArrayOutputStream table, byte @NotNull [] contents, boolean compress) {
+    var data = compress ? deflate(contents) : contents;
+    byte type = compress ? ZLIB_RAW_COMPRESSION : 0;
+    var handle = new ByteArrayOutputStream();
+    putVarint(handle, table.size());
+    putVarint(handle, data.length);
+    table.writeBytes(data);
+    var crc = new CRC32C();
+    crc.update(data);
+    crc.update(type);
+    table.writeBytes(littleEndian(1 + Integer.BYTES).put(type).putInt(mask(crc)).array());
+    return handle.toByteArray();
+  }
+
+  // a log file which contains one record, used for the manifest
+  private byte @NotNull [] logRecord(byte @NotNull [] data) {
+    checkArgument(data.length <= LOG_BLOCK_SIZE - LOG_HEADER_SIZE, "The record is too large");
+    var crc = new CRC32C();
+    crc.update(LOG_FULL);
+    crc.update(data);
+    return littleEndian(LOG_HEADER_SIZE + data.length)
+        .putInt(mask(crc))
+        .putShort((short) data.length)
+        .put(LOG_FULL)
+        .put(data)
+        .array();
+  }
+
+  @Contract(pure = true)
+  private byte @NotNull [] internalKey(byte @NotNull [] userKey) {
+    return littleEndian(userKey.length + Long.BYTES)
+        .put(userKey)
+        .putLong(SEQUENCE << 8 | VALUE_TYPE)
+        .array();
+  }
+
+  private byte @NotNull [] deflate(byte @NotNull [] data) {
+    var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      var output = new ByteArrayOutputStream();
+      var buffer = new byte[8192];
+      while (!deflater.finished()) {
+        output.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  int mask(@NotNull CRC32C crc) {
+    var value = (int) crc.getValue();
+    return ((value >>> 15) | (value << 17)) + CRC_MASK_DELTA;
+  }
+
+  @Contract(pure = true)
+  @NotNull String fileName(long number, @NotNull String extension) {
+    return "%06d.%s".formatted(number, extension);
+  }
+
+  private void putVarint(@NotNull ByteArrayOutputStream output, long value) {
+    var remaining = value;
+    while ((remaining & ~0x7fL) != 0) {
+      output.write((int) ((remaining & 0x7f) | 0x80));
+      remaining >>>= 7;
+    }
+    output.write((int) remaining);
+  }
+
+  private void putLengthPrefixed(@NotNull ByteArrayOutputStream output, byte @NotNull [] bytes) {
+    putVarint(output, bytes.length);
+    output.writeBytes(bytes);
+  }
+
+  @Contract(pure = true)
+  @NotNull ByteBuffer littleEndian(int capacity) {
+    return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  // keys are prefix-compressed against the previous key, except at restart points
+  private static final class BlockBuilder {
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final List<Integer> restarts = new ArrayList<>(List.of(0));
+    private byte[] lastKey = new byte[0];
+    private int counter;
+
+    void add(byte @NotNull [] key, byte @NotNull [] value) {
+      var shared = 0;
+      if (counter < RESTART_INTERVAL) {
+        var limit = Math.min(lastKey.length, key.length);
+        while (shared < limit && lastKey[shared] == key[shared]) {
+          shared++;
+        }
+      } else {
+        restarts.add(buffer.size());
+        counter = 0;
+      }
+      putVarint(buffer, shared);
+      putVarint(buffer, key.length - shared);
+      putVarint(buffer, value.length);
+      buffer.write(key, shared, key.length - shared);
+      buffer.writeBytes(value);
+      lastKey = key;
+      counter++;
+    }
+
+    int size() {
+      return buffer.size() + restarts.size() * Integer.BYTES + Integer.BYTES;
+    }
+
+    boolean isEmpty() {
+      return buffer.size() == 0;
+    }
+
+    byte @NotNull [] finish() {
+      var trailer = littleEndian(restarts.size() * Integer.BYTES + Integer.BYTES);
+      restarts.forEach(trailer::putInt);
+      trailer.putInt(restarts.size());
+      buffer.writeBytes(trailer.array());
+      return buffer.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class UuidsTest {
+
+  // namespaces defined in RFC 4122 Appendix C
+  private static final UUID NAMESPACE_DNS = UUID.fromString("6ba7b810-9dad-11d1-80b4-00c04fd430c8");
+  private static final UUID NAMESPACE_URL = UUID.fromString("6ba7b811-9dad-11d1-80b4-00c04fd430c8");
+
+  // the example of version 5 in RFC 9562 Appendix A.4, which obsoletes RFC 4122
+  @Test
+  void nameBasedMatchesRfcExample() {
+    assertEquals(
+        UUID.fromString("2ed6657d-e927-568b-95e1-2665a8aea6a2"),
+        Uuids.nameBased(NAMESPACE_DNS, "www.example.com"));
+  }
+
+  // the values of uuid.uuid5 of Python
+  @Test
+  void nameBasedMatchesOtherImplementation() {
+    assertEquals(
+        UUID.fromString("886313e1-3b8a-5372-9b90-0c9aee199e5d"),
+        Uuids.nameBased(NAMESPACE_DNS, "python.org"));
+    assertEquals(
+        UUID.fromString("3d3ed9d2-aa3d-5fa6-90e8-ed662e90f559"),
+        Uuids.nameBased(NAMESPACE_URL, "https://www.example.com/"));
+    // names are encoded in UTF-8
+    assertEquals(
+        UUID.fromString("9786f370-913c-51ea-845e-7f3469bc5966"),
+        Uuids.nameBased(NAMESPACE_DNS, "日本語"));
+  }
+
+  @Test
+  void nameBasedHasVersionAndVariant() {
+    var uuid = Uuids.nameBased(NAMESPACE_DNS, "erutcurts");
+    assertEquals(5, uuid.version());
+    assertEquals(2, uuid.variant());
+  }
+}
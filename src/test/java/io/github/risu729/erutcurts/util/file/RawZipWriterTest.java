@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util.file;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipFile;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RawZipWriterTest {
+
+  private static final Instant LAST_MODIFIED = Instant.parse("2023-04-05T06:07:08Z");
+
+  @TempDir Path dir;
+
+  @Test
+  void writtenEntriesAreReadBack() throws IOException {
+    var contents = createContents();
+    var zip = writeZip(dir.resolve("source.zip"), contents);
+
+    assertContents(zip, contents);
+  }
+
+  // copied entries keep the compressed data, and may be renamed
+  @Test
+  void copiedEntriesAreReadBack() throws IOException {
+    var contents = createContents();
+    var source = writeZip(dir.resolve("source.zip"), contents);
+    var target = dir.resolve("target.zip");
+    Map<String, byte[]> expected = new LinkedHashMap<>();
+    try (var reader = RawZipReader.open(source);
+        var writer = RawZipWriter.create(target, CompressionLevel.NORMAL)) {
+      for (var entry : reader.entries().values()) {
+        var name = entry.name().equals("text.txt") ? "renamed/text.txt" : entry.name();
+        writer.copy(reader, entry, name);
+        expected.put(name, contents.get(entry.name()));
+      }
+      // new entries can be added after copied ones
+      var added = "added".getBytes(StandardCharsets.UTF_8);
+      writer.write("added.txt", added, LAST_MODIFIED);
+      expected.put("added.txt", added);
+    }
+
+    assertContents(target, expected);
+    try (var reader = RawZipReader.open(source);
+        var copied = RawZipReader.open(target)) {
+      var original = reader.entry("random.bin").orElseThrow();
+      var copy = copied.entry("random.bin").orElseThrow();
+      assertEquals(original.method(), copy.method());
+      assertEquals(original.compressedSize(), copy.compressedSize());
+      assertEquals(original.crc(), copy.crc());
+    }
+  }
+
+  // timestamps are written in UTC regardless of the default time zone
+  @Test
+  void timestampIsWrittenInUtc() throws IOException {
+    var zip = writeZip(dir.resolve("source.zip"), createContents());
+    try (var reader = RawZipReader.open(zip)) {
+      var dosDateTime = reader.entry("text.txt").orElseThrow().dosDateTime();
+      var date = dosDateTime >>> 16;
+      var time = dosDateTime & 0xffff;
+      assertEquals(
+          LocalDateTime.ofInstant(LAST_MODIFIED, ZoneOffset.UTC),
+          LocalDateTime.of(
+              (date >> 9) + 1980,
+              (date >> 5) & 0xf,
+              date & 0x1f,
+              time >> 11,
+              (time >> 5) & 0x3f,
+              (time & 0x1f) * 2));
+    }
+  }
+
+  // compressible, incompressible, empty and stored entries
+  private Map<String, byte[]> createContents() throws IOException {
+    var random = new Random(0);
+    var randomBytes = new byte[200 * 1024];
+    random.nextBytes(randomBytes);
+    var stored = new byte[1024];
+    random.nextBytes(stored);
+    Map<String, byte[]> contents = new LinkedHashMap<>();
+    contents.put("text.txt", "structure ".repeat(10000).getBytes(StandardCharsets.UTF_8));
+    contents.put("random.bin", randomBytes);
+    contents.put("empty.txt", new byte[0]);
+    contents.put("dir/stored.bin", stored);
+    Files.write(dir.resolve("stored.bin"), stored);
+    return contents;
+  }
+
+  private Path writeZip(Path target, Map<String, byte[]> contents) throws IOException {
+    try (var writer = RawZipWriter.create(target, CompressionLevel.NORMAL)) {
+      for (var entry : contents.entrySet()) {
+        if (entry.getKey().equals("dir/stored.bin")) {
+          writer.store(entry.getKey(), dir.resolve("stored.bin"), LAST_MODIFIED);
+        } else {
+          writer.write(entry.getKey(), entry.getValue(), LAST_MODIFIED);
+        }
+      }
+    }
+    return target;
+  }
+
+  // read by both RawZipReader and ZipFile of the JDK, so that the format is checked by another
+  // implementation too
+  private static void assertContents(Path zip, Map<String, byte[]> expected) throws IOException {
+    try (var reader = RawZipReader.open(zip)) {
+      assertEquals(List.copyOf(expected.keySet()), List.copyOf(reader.entries().keySet()));
+      for (var entry : expected.entrySet()) {
+        assertArrayEquals(
+            entry.getValue(), reader.read(reader.entry(entry.getKey()).orElseThrow()));
+      }
+    }
+    try (var zipFile = new ZipFile(zip.toFile())) {
+      assertEquals(expected.size(), zipFile.size());
+      for (var entry : expected.entrySet()) {
+        try (var input = zipFile.getInputStream(zipFile.getEntry(entry.getKey()))) {
+          assertArrayEquals(entry.getValue(), input.readAllBytes());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2023 Risu
+ *
+ *  This source code is licensed under the MIT license found in the
+ *  LICENSE file in the root directory of this source tree.
+ *
+ */
+
+package io.github.risu729.erutcurts.util.leveldb;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LevelDbWriterTest {
+
+  private static final byte[] PREFIX = {(byte) 0x80, 1};
+
+  @TempDir Path dir;
+
+  @Test
+  void writtenEntriesAreReadBack() throws IOException {
+    var entries = createEntries();
+    LevelDbWriter.write(dir, entries);
+
+    assertEntriesEqual(entries, LevelDbReader.scan(dir, new byte[0]));
+  }
+
+  // keys are compared as unsigned bytes, so the prefix is after all keys starting with 0x00-0x7f
+  @Test
+  void scanReturnsOnlyKeysWithPrefix() throws IOException {
+    var entries = createEntries();
+    LevelDbWriter.write(dir, entries);
+
+    SortedMap<byte[], byte[]> expected = new TreeMap<>(LevelDbWriter.KEY_COMPARATOR);
+    entries.forEach(
+        (key, value) -> {
+          if (key.length >= PREFIX.length && key[0] == PREFIX[0] && key[1] == PREFIX[1]) {
+            expected.put(key, value);
+          }
+        });
+    assertTrue(expected.size() > 0 && expected.size() < entries.size());
+    assertEntriesEqual(expected, LevelDbReader.scan(dir, PREFIX));
+  }
+
+  // the values span many blocks, and one is larger than a block by itself
+  private static SortedMap<byte[], byte[]> createEntries() {
+    var random = new Random(0);
+    SortedMap<byte[], byte[]> entries = new TreeMap<>(LevelDbWriter.KEY_COMPARATOR);
+    for (int i = 0; i < 2000; i++) {
+      // keys share prefixes like the chunk keys of worlds
+      var key =
+          ByteBuffer.allocate(6)
+              .put((byte) (i % 2 == 0 ? 0x10 : 0x80))
+              .put((byte) (i % 3))
+              .putInt(i)
+              .array();
+      var value = new byte[random.nextInt(200)];
+      // half of the values are compressible
+      if (i % 2 == 0) {
+        random.nextBytes(value);
+      }
+      entries.put(key, value);
+    }
+    var large = new byte[64 * 1024];
+    random.nextBytes(large);
+    entries.put(new byte[] {(byte) 0x80, 1, (byte) 0xff}, large);
+    return entries;
+  }
+
+  private static void assertEntriesEqual(
+      SortedMap<byte[], byte[]> expected, SortedMap<byte[], byte[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    var expectedEntries = new ArrayList<>(expected.entrySet());
+    var actualEntries = new ArrayList<>(actual.entrySet());
+    for (int i = 0; i < expectedEntries.size(); i++) {
+      assertArrayEquals(expectedEntries.get(i).getKey(), actualEntries.get(i).getKey());
+      assertArrayEquals(expectedEntries.get(i).getValue(), actualEntries.get(i).getValue());
+    }
+  }
+}